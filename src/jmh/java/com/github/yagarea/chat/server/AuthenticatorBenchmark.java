@@ -0,0 +1,81 @@
+package com.github.yagarea.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Authenticator} against credential files of several sizes: loading the file at
+ * start-up, and checking the password of a random registered user.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthenticatorBenchmark {
+    private static final String PASSWORD = "password";
+
+    @Param({"1000", "100000"})
+    public int users;
+
+    private Path file;
+    private Authenticator authenticator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("AuthBenchmark", ".txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            PasswordHolder holder = new PasswordHolder(PASSWORD);
+            for (int i = 0; i < users; i++) {
+                writer.write("user" + i + ":" + holder.getSalt() + ":" + holder.getHash());
+                writer.newLine();
+            }
+        }
+        authenticator = new Authenticator(file.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Authenticator load() {
+        return new Authenticator(file.toString());
+    }
+
+    @Benchmark
+    public boolean authenticate() {
+        return authenticator.authenticate("user" + ThreadLocalRandom.current().nextInt(users), PASSWORD);
+    }
+
+    @Benchmark
+    public boolean authenticateWrongPassword() {
+        return authenticator.authenticate("user" + ThreadLocalRandom.current().nextInt(users), "wrong");
+    }
+
+    @Benchmark
+    public boolean userIsRegistered() {
+        return authenticator.userIsRegistered("user" + ThreadLocalRandom.current().nextInt(users * 2));
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.Handshake;
+import com.github.yagarea.chat.shared.security.RSA;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One broadcast through {@link BroadcastFanOut} to N in-memory recipients, the way
+ * {@code ClientConnection.broadcast} delivers chat messages. Recipients speak pure RSA
+ * (protocol version 1), AES-GCM lines, or AES-GCM binary frames, and discard what is
+ * queued for them right away, like a writer that is never blocked.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+    private static final String MESSAGE = "\u001B[35malice: \u001B[0mhello everybody, how is it going?";
+
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    @Param({"rsa", "aes", "binary"})
+    public String protocol;
+
+    @Param({"1000000"})
+    public int parallelThreshold;
+
+    private BroadcastFanOut fanOut;
+    private List<ClientConnection> connections;
+
+    /**
+     * A connection whose transport drops everything it is asked to write.
+     */
+    static class InMemoryConnection extends ClientConnection {
+        InMemoryConnection(ServerContext context) {
+            super(context);
+        }
+
+        @Override
+        protected void onQueued() {
+            while (outbound.poll() != null) {
+                // discarded
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        RSA serverKeys = new RSA(1024, RSA.ExponentPolicy.F4);
+        RSA clientKeys = new RSA(1024, RSA.ExponentPolicy.F4);
+        Map<String, ClientConnection> clients = new ConcurrentHashMap<>();
+        fanOut = new BroadcastFanOut(Runtime.getRuntime().availableProcessors(), parallelThreshold);
+        ServerContext context = new ServerContext(clients, serverKeys, null, fanOut, new FileRelay(), new ServerMetrics(fanOut, null), null, null, null, null, null, null, null);
+        connections = new ArrayList<>();
+        for (int i = 0; i < recipients; i++) {
+            InMemoryConnection connection = new InMemoryConnection(context);
+            connection.onLine(clientKeys.getE().toString());
+            connection.onLine(clientKeys.getN().toString());
+            if (protocol.equals("aes")) {
+                connection.onLine(Handshake.hello(Collections.<String>emptyList()));
+            } else if (protocol.equals("binary")) {
+                connection.onLine(Handshake.hello(Collections.singletonList(Handshake.BINARY)));
+            }
+            connection.onQueued();
+            connections.add(connection);
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        fanOut.broadcast(connections, null, MESSAGE);
+    }
+}
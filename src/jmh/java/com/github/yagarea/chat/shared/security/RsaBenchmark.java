@@ -0,0 +1,68 @@
+package com.github.yagarea.chat.shared.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RSA#encryptString(String)} and {@link RSA#decryptString(String)} for both
+ * exponent policies, several key sizes and several message lengths. The original key
+ * pairs ({@code LEGACY}) have a huge public and a tiny private exponent, which makes them
+ * slow to encrypt, cheap to decrypt and open to Wiener's attack.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RsaBenchmark {
+
+    @Param({"1024", "2048"})
+    public int bits;
+
+    @Param({"F4", "LEGACY"})
+    public RSA.ExponentPolicy policy;
+
+    @Param({"16", "64", "120"})
+    public int messageLength;
+
+    private RSA keys;
+    private RSA publicKey;
+    private String message;
+    private String encrypted;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(messageLength);
+        keys = new RSA(bits, policy, random);
+        publicKey = new RSA(keys.getE(), keys.getN());
+        StringBuilder text = new StringBuilder();
+        while (text.length() < messageLength) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        message = text.toString();
+        encrypted = publicKey.encryptString(message);
+    }
+
+    @Benchmark
+    public String encryptString() {
+        return publicKey.encryptString(message);
+    }
+
+    @Benchmark
+    public String decryptString() {
+        return keys.decryptString(encrypted);
+    }
+}
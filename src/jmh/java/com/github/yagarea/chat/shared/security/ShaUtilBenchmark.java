@@ -0,0 +1,47 @@
+package com.github.yagarea.chat.shared.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ShaUtil#hash(String)} of a salt followed by passwords of several lengths, as
+ * computed on every login, registration and password change.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShaUtilBenchmark {
+
+    @Param({"8", "64", "1024"})
+    public int passwordLength;
+
+    private String saltedPassword;
+
+    @Setup
+    public void setUp() {
+        StringBuilder password = new StringBuilder("1284618579764625476");
+        for (int i = 0; i < passwordLength; i++) {
+            password.append((char) ('a' + i % 26));
+        }
+        saltedPassword = password.toString();
+    }
+
+    @Benchmark
+    public String hash() {
+        return ShaUtil.hash(saltedPassword);
+    }
+}
@@ -0,0 +1,288 @@
+package com.github.yagarea.chat.client;
+
+import com.github.yagarea.chat.shared.Frame;
+import com.github.yagarea.chat.shared.FrameReader;
+import com.github.yagarea.chat.shared.Handshake;
+import com.github.yagarea.chat.shared.LoginResponse;
+import com.github.yagarea.chat.shared.security.CompressingCipher;
+import com.github.yagarea.chat.shared.security.MessageCipher;
+import com.github.yagarea.chat.shared.security.RSA;
+import com.github.yagarea.chat.shared.security.RsaMessageCipher;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The client side of one connection to the chat server: runs the key exchange and the
+ * protocol negotiation described in {@link Handshake}, then encrypts, frames and
+ * decrypts the messages of the session. File transfer frames received along with the
+ * messages are handed to the {@link FileTransfers} of the session.
+ */
+public class ChatSession implements Closeable {
+    private final Socket socket;
+    private final FrameReader reader;
+    private final OutputStream writer;
+    private MessageCipher cipher;
+    private boolean binaryFrames;
+    private boolean heartbeat;
+    private final FileTransfers fileTransfers;
+    private long retryAfterMillis;
+
+    private ChatSession(Socket socket) throws IOException {
+        // every write is a complete message or acknowledgement, waiting for more only adds latency
+        socket.setTcpNoDelay(true);
+        this.socket = socket;
+        this.reader = new FrameReader(socket.getInputStream());
+        this.writer = new BufferedOutputStream(socket.getOutputStream());
+        this.fileTransfers = new FileTransfers(this, Paths.get(ClientConfig.DOWNLOADS), ClientConfig.TRANSFER_MAX_BYTES);
+    }
+
+    /**
+     * Connects to a server and runs the handshake.
+     *
+     * @param host the address of the server
+     * @param port the port of the server
+     * @param decryptor the RSA key pair of the client
+     * @param protocol the protocol version to ask for
+     * @param features the features to offer when asking for protocol version 2
+     * @return the session, ready to log in
+     * @throws IOException if the connection or the handshake fails
+     */
+    public static ChatSession connect(String host, int port, RSA decryptor, int protocol, List<String> features) throws IOException {
+        ChatSession session = new ChatSession(new Socket(host, port));
+        try {
+            session.handshake(decryptor, protocol, features);
+            return session;
+        } catch (IOException | RuntimeException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects to a server with the protocol and features selected in {@link ClientConfig}.
+     *
+     * @param host the address of the server
+     * @param port the port of the server
+     * @param decryptor the RSA key pair of the client
+     * @return the session, ready to log in
+     * @throws IOException if the connection or the handshake fails
+     */
+    public static ChatSession connect(String host, int port, RSA decryptor) throws IOException {
+        List<String> features = new ArrayList<>();
+        if (ClientConfig.BINARY_FRAMES) {
+            features.add(Handshake.BINARY);
+        }
+        if (ClientConfig.COMPRESSION) {
+            features.add(Handshake.DEFLATE);
+        }
+        features.add(Handshake.HEARTBEAT);
+        return connect(host, port, decryptor, ClientConfig.PROTOCOL, features);
+    }
+
+    private void handshake(RSA decryptor, int protocol, List<String> features) throws IOException {
+        writeLine(decryptor.getE().toString());
+        writeLine(decryptor.getN().toString());
+        if (protocol >= Handshake.VERSION) {
+            writeLine(Handshake.hello(features));
+        }
+        writer.flush();
+
+        BigInteger e = new BigInteger(readHandshakeLine());
+        BigInteger n = new BigInteger(readHandshakeLine());
+        if (protocol >= Handshake.VERSION) {
+            String welcome = readHandshakeLine();
+            cipher = Handshake.readWelcome(welcome, decryptor);
+            Set<String> accepted = Handshake.acceptedFeatures(welcome);
+            binaryFrames = accepted.contains(Handshake.BINARY);
+            heartbeat = accepted.contains(Handshake.HEARTBEAT);
+            if (accepted.contains(Handshake.DEFLATE)) {
+                cipher = new CompressingCipher(cipher, ClientConfig.COMPRESS_THRESHOLD);
+            }
+        } else {
+            cipher = new RsaMessageCipher(new RSA(e, n), decryptor);
+        }
+    }
+
+    private String readHandshakeLine() throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IOException("Server closed the connection during the handshake");
+        }
+        return line;
+    }
+
+    /**
+     * Sends the credentials and reads the answer of the server.
+     *
+     * @param username the nickname
+     * @param password the password
+     * @return the answer of the server; after {@link LoginResponse#SERVER_BUSY}, log in
+     *         again once {@link #getRetryAfterMillis()} have passed
+     * @throws IOException if the connection fails or is closed
+     */
+    public LoginResponse login(String username, String password) throws IOException {
+        write(username);
+        write(password);
+        writer.flush();
+        String response = receive();
+        if (response == null) {
+            throw new IOException("Server closed the connection during the login");
+        }
+        if (response.startsWith(LoginResponse.SERVER_BUSY.name() + ":")) {
+            retryAfterMillis = Long.parseLong(response.substring(LoginResponse.SERVER_BUSY.name().length() + 1));
+            return LoginResponse.SERVER_BUSY;
+        }
+        return LoginResponse.valueOf(response);
+    }
+
+    /**
+     * Returns the delay after which the server asked to log in again, with the last
+     * {@link LoginResponse#SERVER_BUSY} answer.
+     *
+     * @return the retry delay in milliseconds
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * Encrypts and sends a message.
+     *
+     * @param message the plain text message
+     * @throws IOException if the connection fails
+     */
+    public synchronized void send(String message) throws IOException {
+        write(message);
+        writer.flush();
+    }
+
+    /**
+     * Encrypts a file transfer control line and sends it as a {@link Frame#TRANSFER} frame.
+     *
+     * @param control the control line
+     * @throws IOException if the connection fails
+     */
+    void sendTransfer(String control) throws IOException {
+        sendFrame(Frame.TRANSFER, cipher.encrypt(control.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Sends a binary frame.
+     *
+     * @param type the type of the frame
+     * @param payload the payload of the frame
+     * @throws IOException if the connection fails
+     */
+    synchronized void sendFrame(byte type, byte[] payload) throws IOException {
+        writer.write(Frame.encode(type, payload));
+        writer.flush();
+    }
+
+    /**
+     * Answers a heartbeat of the server.
+     *
+     * @throws IOException if the connection fails
+     */
+    private synchronized void pong() throws IOException {
+        if (binaryFrames) {
+            writer.write(Frame.encode(Frame.PONG, new byte[0]));
+        } else {
+            writeLine(Handshake.PONG);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Waits for the next message from the server, processing the file transfer frames
+     * and answering the heartbeats received in the meantime.
+     *
+     * @return the decrypted message, or null once the server closed the connection
+     * @throws IOException if the connection fails or a message cannot be decrypted
+     */
+    public String receive() throws IOException {
+        try {
+            if (binaryFrames) {
+                while (true) {
+                    Frame frame = reader.readFrame();
+                    if (frame == null) {
+                        return null;
+                    }
+                    if (frame.getType() == Frame.MESSAGE) {
+                        return new String(cipher.decrypt(frame.getPayload()), StandardCharsets.UTF_8);
+                    } else if (frame.getType() == Frame.TRANSFER) {
+                        fileTransfers.onControl(new String(cipher.decrypt(frame.getPayload()), StandardCharsets.UTF_8));
+                    } else if (frame.getType() == Frame.CHUNK) {
+                        fileTransfers.onChunk(frame.getPayload());
+                    } else if (frame.getType() == Frame.PING) {
+                        pong();
+                    }
+                }
+            }
+            while (true) {
+                String line = reader.readLine();
+                if (line == null) {
+                    return null;
+                }
+                if (heartbeat && line.equals(Handshake.PING)) {
+                    pong();
+                } else {
+                    return cipher.decryptString(line);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Cannot decrypt message from server", e);
+        }
+    }
+
+    /**
+     * Tells whether binary frames were negotiated, which file transfers require.
+     *
+     * @return true if the session uses binary frames
+     */
+    public boolean isBinaryFrames() {
+        return binaryFrames;
+    }
+
+    /**
+     * Returns the file transfers of the session.
+     *
+     * @return the file transfers
+     */
+    public FileTransfers getFileTransfers() {
+        return fileTransfers;
+    }
+
+    private void write(String message) throws IOException {
+        if (binaryFrames) {
+            writer.write(Frame.encode(Frame.MESSAGE, cipher.encrypt(message.getBytes(StandardCharsets.UTF_8))));
+        } else {
+            writeLine(cipher.encryptString(message));
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        writer.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Closes the connection.
+     */
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
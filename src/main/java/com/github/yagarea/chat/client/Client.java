@@ -5,19 +5,24 @@ import com.github.yagarea.chat.shared.UserConsoleReader;
 import com.github.yagarea.chat.shared.UserReader;
 import com.github.yagarea.chat.shared.UserSystemInReader;
 import com.github.yagarea.chat.shared.security.RSA;
+import com.github.yagarea.chat.shared.security.RsaKeyStore;
 import com.github.yagarea.chat.shared.SharedFunctions;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.math.BigInteger;
-import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * The Client class is responsible for establishing a connection to the chat server,
  * handling user authentication, and facilitating communication between the user and the server.
- * It utilizes RSA encryption for secure transmission of user credentials and messages.
+ * It utilizes RSA encryption to agree on an AES session key, which protects user
+ * credentials and messages, or pure RSA when speaking protocol version 1.
  */
 public class Client {
+    private static final Pattern SEND_PATTERN = Pattern.compile(":send @(\\w+) (.+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern OFFER_PATTERN = Pattern.compile(":(accept|decline) (\\d+)", Pattern.CASE_INSENSITIVE);
+
     /**
      * The main method serves as the entry point for the Client application.
      * It establishes a socket connection to the server, handles user login,
@@ -29,18 +34,11 @@ public class Client {
     public static void main(String[] args) {
         try {
             SharedFunctions.screenColours();
-            Socket clientSocket = new Socket(args[0], Integer.parseInt(args[1]));
-
-            RSA decryptor = new RSA();
-            PrintWriter writer = new PrintWriter(clientSocket.getOutputStream());
-            writer.println(decryptor.getE());
-            writer.println(decryptor.getN());
-            writer.flush();
-
-            ResponsePrinterLoop responsePrinterLoop = new ResponsePrinterLoop(clientSocket, decryptor);
-            BigInteger e = new BigInteger(responsePrinterLoop.readLine());
-            BigInteger n = new BigInteger(responsePrinterLoop.readLine());
-            RSA encryptor = new RSA(e, n);
+            RSA decryptor = ClientConfig.KEY_STORE.isEmpty()
+                    ? RSA.generate(RSA.DEFAULT_BITS, RSA.DEFAULT_EXPONENT, RSA.DEFAULT_THREADS)
+                    : RsaKeyStore.loadOrGenerate(Paths.get(ClientConfig.KEY_STORE), RSA.DEFAULT_BITS, RSA.DEFAULT_EXPONENT, RSA.DEFAULT_THREADS);
+            ChatSession session = ChatSession.connect(args[0], Integer.parseInt(args[1]), decryptor);
+            ResponsePrinterLoop responsePrinterLoop = new ResponsePrinterLoop(session);
             UserReader consoleReader = System.console() == null ? new UserSystemInReader() : new UserConsoleReader();
 
             LoginResponse usernameResponse;
@@ -49,10 +47,12 @@ public class Client {
                 String username = consoleReader.readLine();
                 System.out.print("Password: ");
                 String password = consoleReader.readPassword();
-                writer.println(encryptor.encryptString(username));
-                writer.println(encryptor.encryptString(password));
-                writer.flush();
-                usernameResponse = LoginResponse.valueOf(decryptor.decryptString(responsePrinterLoop.readLine()));
+                usernameResponse = session.login(username, password);
+                while (usernameResponse == LoginResponse.SERVER_BUSY) {
+                    System.out.println("Server busy, retrying in " + session.getRetryAfterMillis() + " ms");
+                    Thread.sleep(session.getRetryAfterMillis());
+                    usernameResponse = session.login(username, password);
+                }
                 System.out.println(usernameResponse.name());
             } while (usernameResponse != LoginResponse.LOGIN_ACCPETED && usernameResponse != LoginResponse.REGISTERED);
             new Thread(responsePrinterLoop).start();
@@ -62,27 +62,48 @@ public class Client {
                 if (!messageToServer.equals("")) {
                     if (messageToServer.toLowerCase().startsWith(":changepassword")) {
                         String psw=consoleReader.readPassword();
-                        writer.println(encryptor.encryptString(":changePassword " + psw));
-                        writer.flush();
+                        session.send(":changePassword " + psw);
+                    }else if (messageToServer.toLowerCase().startsWith(":send")) {
+                        Matcher sendMatcher = SEND_PATTERN.matcher(messageToServer);
+                        if (sendMatcher.matches()) {
+                            session.getFileTransfers().send(sendMatcher.group(1), Paths.get(sendMatcher.group(2)));
+                        } else {
+                            System.out.println("usage: :send @[username] [path]");
+                        }
+                    }else if (messageToServer.toLowerCase().startsWith(":accept") || messageToServer.toLowerCase().startsWith(":decline")) {
+                        Matcher offerMatcher = OFFER_PATTERN.matcher(messageToServer);
+                        if (!offerMatcher.matches()) {
+                            System.out.println("usage: :accept [number] or :decline [number]");
+                        } else if (offerMatcher.group(1).equalsIgnoreCase("accept")) {
+                            session.getFileTransfers().accept(Integer.parseInt(offerMatcher.group(2)));
+                        } else {
+                            session.getFileTransfers().decline(Integer.parseInt(offerMatcher.group(2)));
+                        }
                     }else if (messageToServer.toLowerCase().startsWith(":quit")) {
                         break;
                     }else if (messageToServer.toLowerCase().startsWith(":help")) {
                         System.out.println("commands:\n"+
                         "\t@[username] [message] - sends to client [username] [message]\n"+
-                        "\t:clients - lists all connected clients\n"+
+                        "\t:clients [@prefix] [page] - lists the connected clients, or those whose\n\tname starts with [prefix], one page at a time\n"+
+                        "\t:history [N] - prints the last N messages of the chat, 20 by default\n"+
+                        "\t:rooms - lists the rooms and their number of members\n"+
+                        "\t:join [room] - moves to room [room], creating it if needed\n"+
+                        "\t:leave - moves back to the default room\n"+
+                        "\t:send @[username] [path] - sends the file at [path] to client [username]\n"+
+                        "\t:accept [number] - accepts the file offer [number]\n"+
+                        "\t:decline [number] - declines the file offer [number]\n"+
                         "\t:changepassword - reads the new password after pressing ENTER and\n\tchanges it. SAVE IT!\n"+
                         "\t:help - lists all commands\n"+
                         "\t:quit - disconnects from the server\n");
                     }else{
-                        writer.println(encryptor.encryptString(messageToServer));
-                        writer.flush();
+                        session.send(messageToServer);
                     }
                 }
                 
             }
             SharedFunctions.clearScreen();
             System.exit(0);
-        } catch (IOException e) {
+        } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         }
     }
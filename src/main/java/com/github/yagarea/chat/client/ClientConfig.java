@@ -0,0 +1,55 @@
+package com.github.yagarea.chat.client;
+
+import com.github.yagarea.chat.shared.Handshake;
+
+/**
+ * Tunable client settings, read once from Java system properties, e.g.
+ * <pre>
+ * java -Dchat.client.protocol=1 -jar client.jar localhost 4444
+ * </pre>
+ */
+public final class ClientConfig {
+
+    /**
+     * The protocol version the client asks for. Version 1 is the pure RSA protocol
+     * understood by old servers, see {@link Handshake}.
+     */
+    public static final int PROTOCOL = Integer.getInteger("chat.client.protocol", Handshake.VERSION);
+
+    /**
+     * Whether the client offers the {@link Handshake#BINARY} feature, so that messages
+     * travel as length-prefixed frames of raw ciphertext instead of Base64 lines.
+     */
+    public static final boolean BINARY_FRAMES = Boolean.parseBoolean(System.getProperty("chat.client.binary", "true"));
+
+    /**
+     * Whether the client offers the {@link Handshake#DEFLATE} feature, so that long
+     * messages are compressed before they are encrypted.
+     */
+    public static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("chat.client.compress", "true"));
+
+    /**
+     * The size in bytes from which messages to the server are compressed.
+     */
+    public static final int COMPRESS_THRESHOLD = Integer.getInteger("chat.client.compress.threshold", 96);
+
+    /**
+     * The directory where files received with {@code :send} are saved.
+     */
+    public static final String DOWNLOADS = System.getProperty("chat.client.downloads", "downloads");
+
+    /**
+     * The size in bytes of the largest file the user is asked to accept; larger offers
+     * are declined without asking.
+     */
+    public static final long TRANSFER_MAX_BYTES = Long.getLong("chat.client.transfer.maxBytes", 1L << 30);
+
+    /**
+     * The file holding the RSA key pair of the client, generated on the first start.
+     * Unset by default, so that every session gets a fresh key pair.
+     */
+    public static final String KEY_STORE = System.getProperty("chat.client.keyStore", "");
+
+    private ClientConfig() {
+    }
+}
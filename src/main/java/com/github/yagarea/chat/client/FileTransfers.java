@@ -0,0 +1,519 @@
+package com.github.yagarea.chat.client;
+
+import com.github.yagarea.chat.shared.Frame;
+import com.github.yagarea.chat.shared.SharedFunctions;
+import com.github.yagarea.chat.shared.security.AesGcmCipher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends and receives files over a binary {@link ChatSession}.
+ * <p>
+ * The sender generates an AES key for the transfer and offers the file with a
+ * {@link Frame#TRANSFER} control line {@code OFFER <peer> <id> <size> <key> <name>}.
+ * The offer waits until the user types {@code :accept} or {@code :decline} with the
+ * number it was given; offers of more than {@link ClientConfig#TRANSFER_MAX_BYTES} are
+ * declined at once. Once accepted, the recipient saves the file to
+ * {@link ClientConfig#DOWNLOADS}, never writing more than the offered size, and answers
+ * {@code ACK <peer> <id> <chunks>} after the offer and after every chunk it has written.
+ * The sender streams the file in {@link Frame#CHUNK} frames, never more than
+ * {@link #WINDOW} chunks ahead of the acknowledgements, then sends {@code END} and waits
+ * for {@code DONE}. Either side may give up with {@code CANCEL <peer> <id> <reason>}.
+ * Neither side ever holds more than one chunk of the file in memory.
+ */
+public class FileTransfers {
+    static final int CHUNK_SIZE = 32 * 1024;
+    static final int WINDOW = 16;
+    private static final long PROGRESS_STEP = 10;
+
+    private final ChatSession session;
+    private final Path downloads;
+    private final long maxBytes;
+    private final Map<Long, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final Map<Long, Incoming> incoming = new ConcurrentHashMap<>();
+    private final Map<Integer, Offer> offers = new ConcurrentHashMap<>();
+    private final AtomicInteger offerNumbers = new AtomicInteger();
+
+    /**
+     * A file offered to the user, waiting to be accepted or declined.
+     */
+    private static class Offer {
+        final long id;
+        final String peer;
+        final String name;
+        final long size;
+        final AesGcmCipher cipher;
+
+        Offer(long id, String peer, String name, long size, AesGcmCipher cipher) {
+            this.id = id;
+            this.peer = peer;
+            this.name = name;
+            this.size = size;
+            this.cipher = cipher;
+        }
+    }
+
+    /**
+     * The progress of one transfer, in either direction.
+     */
+    private abstract static class Transfer {
+        final long id;
+        final String peer;
+        final String name;
+        final long size;
+        final AesGcmCipher cipher;
+        final long started = System.nanoTime();
+        long transferred;
+        long reported;
+
+        Transfer(long id, String peer, String name, long size, AesGcmCipher cipher) {
+            this.id = id;
+            this.peer = peer;
+            this.name = name;
+            this.size = size;
+            this.cipher = cipher;
+        }
+
+        /**
+         * Prints the progress every {@link #PROGRESS_STEP} percent.
+         */
+        void progress(long bytes) {
+            transferred += bytes;
+            long percent = size == 0 ? 100 : transferred * 100 / size;
+            if (percent >= reported + PROGRESS_STEP || transferred == size) {
+                reported = percent - percent % PROGRESS_STEP;
+                System.out.println(SharedFunctions.BLU + describe() + SharedFunctions.RESET + " " + percent + "% " + throughput());
+            }
+        }
+
+        String throughput() {
+            double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+            return String.format("%.1f KiB/s", transferred / 1024.0 / seconds);
+        }
+
+        abstract String describe();
+    }
+
+    private static class Outgoing extends Transfer {
+        final Path path;
+        long acknowledged = -1;
+        boolean done;
+        String cancelled;
+
+        Outgoing(long id, String peer, Path path, long size) {
+            super(id, peer, path.getFileName().toString(), size, AesGcmCipher.generate());
+            this.path = path;
+        }
+
+        @Override
+        String describe() {
+            return name + " -> " + peer;
+        }
+    }
+
+    private static class Incoming extends Transfer {
+        final Path path;
+        final OutputStream output;
+        long chunks;
+
+        Incoming(long id, String peer, String name, long size, AesGcmCipher cipher, Path path, OutputStream output) {
+            super(id, peer, name, size, cipher);
+            this.path = path;
+            this.output = output;
+        }
+
+        @Override
+        String describe() {
+            return name + " <- " + peer;
+        }
+    }
+
+    /**
+     * Constructs the transfers of a session.
+     *
+     * @param session the session carrying the transfers
+     * @param downloads the directory where received files are saved
+     * @param maxBytes the size of the largest file the user is asked to accept
+     */
+    public FileTransfers(ChatSession session, Path downloads, long maxBytes) {
+        this.session = session;
+        this.downloads = downloads;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Starts sending a file to a user, on a thread of its own.
+     *
+     * @param peer the username of the recipient
+     * @param path the file to send
+     */
+    public void send(String peer, Path path) {
+        if (!session.isBinaryFrames()) {
+            printError("File transfers need a server accepting binary frames");
+            return;
+        }
+        if (!Files.isRegularFile(path) || !Files.isReadable(path)) {
+            printError("Cannot read " + path);
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                stream(new Outgoing(ThreadLocalRandom.current().nextLong(Long.MAX_VALUE), peer, path, Files.size(path)));
+            } catch (IOException e) {
+                printError("Cannot send " + path + ": " + e.getMessage());
+            }
+        }, "file-transfer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void stream(Outgoing transfer) throws IOException {
+        outgoing.put(transfer.id, transfer);
+        try {
+            System.out.println(SharedFunctions.BLU + "Offering " + transfer.describe() + ", waiting for it to be accepted" + SharedFunctions.RESET);
+            sendTransfer("OFFER " + transfer.peer + " " + transfer.id + " " + transfer.size + " "
+                    + Base64.getEncoder().encodeToString(transfer.cipher.getKey()) + " " + transfer.name);
+            try (InputStream input = Files.newInputStream(transfer.path)) {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                long sent = 0;
+                while (true) {
+                    if (!awaitWindow(transfer, sent)) {
+                        return;
+                    }
+                    int read = readChunk(input, buffer);
+                    if (read == 0) {
+                        break;
+                    }
+                    byte[] sealed = transfer.cipher.encrypt(read == buffer.length ? buffer : Arrays.copyOf(buffer, read));
+                    session.sendFrame(Frame.CHUNK, ByteBuffer.allocate(Long.BYTES + sealed.length).putLong(transfer.id).put(sealed).array());
+                    sent++;
+                    transfer.progress(read);
+                }
+            }
+            sendTransfer("END " + transfer.peer + " " + transfer.id + " " + transfer.size);
+            synchronized (transfer) {
+                while (!transfer.done && transfer.cancelled == null) {
+                    transfer.wait();
+                }
+            }
+            if (transfer.done) {
+                System.out.println(SharedFunctions.VERDE + transfer.describe() + " delivered" + SharedFunctions.RESET + ", " + transfer.throughput());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            outgoing.remove(transfer.id);
+        }
+    }
+
+    /**
+     * Fills the buffer from the file, unless the end of the file comes first.
+     *
+     * @return the number of bytes read, 0 at the end of the file
+     */
+    private static int readChunk(InputStream input, byte[] buffer) throws IOException {
+        int filled = 0;
+        while (filled < buffer.length) {
+            int read = input.read(buffer, filled, buffer.length - filled);
+            if (read == -1) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+
+    /**
+     * Waits until the recipient has accepted the transfer and acknowledged enough
+     * chunks to send one more.
+     *
+     * @return false if the transfer was cancelled
+     */
+    private boolean awaitWindow(Outgoing transfer, long sent) throws InterruptedException {
+        synchronized (transfer) {
+            while (transfer.cancelled == null && (transfer.acknowledged < 0 || sent - transfer.acknowledged >= WINDOW)) {
+                transfer.wait();
+            }
+            return transfer.cancelled == null;
+        }
+    }
+
+    /**
+     * Processes a control line received from the server.
+     *
+     * @param control the decrypted control line
+     */
+    void onControl(String control) {
+        String[] parts = control.split(" ", 4);
+        if (parts.length < 3) {
+            return;
+        }
+        String verb = parts[0];
+        String peer = parts[1];
+        long id;
+        try {
+            id = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        String arguments = parts.length > 3 ? parts[3] : "";
+        switch (verb) {
+            case "OFFER":
+                onOffer(peer, id, arguments);
+                break;
+            case "ACK":
+                onAck(id, arguments);
+                break;
+            case "END":
+                onEnd(id, arguments);
+                break;
+            case "DONE":
+                Outgoing done = outgoing.get(id);
+                if (done != null) {
+                    synchronized (done) {
+                        done.done = true;
+                        done.notifyAll();
+                    }
+                }
+                break;
+            case "CANCEL":
+                onCancel(id, arguments);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onOffer(String peer, long id, String arguments) {
+        String[] offer = arguments.split(" ", 3);
+        try {
+            long size = Long.parseLong(offer[0]);
+            AesGcmCipher cipher = new AesGcmCipher(Base64.getDecoder().decode(offer[1]));
+            Path name = Paths.get(offer[2]).getFileName();
+            if (name == null || size < 0) {
+                throw new IllegalArgumentException("Invalid offer");
+            }
+            if (size > maxBytes) {
+                printError(peer + " offered " + name + " (" + size + " bytes), more than the limit of " + maxBytes + " bytes");
+                sendQuietly("CANCEL " + peer + " " + id + " too large");
+                return;
+            }
+            int number = offerNumbers.incrementAndGet();
+            offers.put(number, new Offer(id, peer, name.toString(), size, cipher));
+            System.out.println(SharedFunctions.BLU + peer + " offers " + name + " (" + size + " bytes): :accept "
+                    + number + " or :decline " + number + SharedFunctions.RESET);
+        } catch (RuntimeException e) {
+            printError("Cannot receive a file from " + peer + ": " + e.getMessage());
+            sendQuietly("CANCEL " + peer + " " + id + " refused");
+        }
+    }
+
+    /**
+     * Accepts a file offered to the user, which starts the transfer.
+     *
+     * @param number the number the offer was given when it was printed
+     */
+    public void accept(int number) {
+        Offer offer = offers.remove(number);
+        if (offer == null) {
+            printError("No file offer " + number);
+            return;
+        }
+        try {
+            Files.createDirectories(downloads);
+            Path path = unusedPath(offer.name);
+            OutputStream output = Files.newOutputStream(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            incoming.put(offer.id, new Incoming(offer.id, offer.peer, offer.name, offer.size, offer.cipher, path, output));
+            System.out.println(SharedFunctions.BLU + "Receiving " + offer.name + " from " + offer.peer + " to " + path + SharedFunctions.RESET);
+            sendTransfer("ACK " + offer.peer + " " + offer.id + " 0");
+        } catch (IOException e) {
+            printError("Cannot receive " + offer.name + ": " + e.getMessage());
+            Incoming transfer = incoming.get(offer.id);
+            if (transfer != null) {
+                abort(transfer, "failed");
+            } else {
+                sendQuietly("CANCEL " + offer.peer + " " + offer.id + " failed");
+            }
+        }
+    }
+
+    /**
+     * Declines a file offered to the user.
+     *
+     * @param number the number the offer was given when it was printed
+     */
+    public void decline(int number) {
+        Offer offer = offers.remove(number);
+        if (offer == null) {
+            printError("No file offer " + number);
+            return;
+        }
+        sendQuietly("CANCEL " + offer.peer + " " + offer.id + " declined");
+        System.out.println(SharedFunctions.BLU + "Declined " + offer.name + " from " + offer.peer + SharedFunctions.RESET);
+    }
+
+    private Path unusedPath(String name) {
+        Path path = downloads.resolve(name);
+        for (int i = 1; Files.exists(path); i++) {
+            path = downloads.resolve(name + "." + i);
+        }
+        return path;
+    }
+
+    /**
+     * Decrypts a chunk and appends it to its file.
+     *
+     * @param payload the payload of a {@link Frame#CHUNK} frame
+     */
+    void onChunk(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        Incoming transfer = incoming.get(buffer.getLong());
+        if (transfer == null) {
+            return;
+        }
+        try {
+            byte[] chunk = transfer.cipher.decrypt(Arrays.copyOfRange(payload, Long.BYTES, payload.length));
+            if (transfer.transferred + chunk.length > transfer.size) {
+                abort(transfer, "too large");
+                printError("Cannot receive " + transfer.name + ": more than the " + transfer.size + " bytes offered");
+                return;
+            }
+            transfer.output.write(chunk);
+            transfer.chunks++;
+            transfer.progress(chunk.length);
+            sendTransfer("ACK " + transfer.peer + " " + transfer.id + " " + transfer.chunks);
+        } catch (IOException | RuntimeException e) {
+            abort(transfer, "failed");
+            printError("Cannot receive " + transfer.name + ": " + e.getMessage());
+        }
+    }
+
+    private void onAck(long id, String arguments) {
+        Outgoing transfer = outgoing.get(id);
+        if (transfer == null) {
+            return;
+        }
+        long chunks;
+        try {
+            chunks = Long.parseLong(arguments);
+        } catch (NumberFormatException e) {
+            synchronized (transfer) {
+                transfer.cancelled = "malformed";
+                transfer.notifyAll();
+            }
+            sendQuietly("CANCEL " + transfer.peer + " " + id + " malformed");
+            printError(transfer.describe() + " cancelled: malformed acknowledgement");
+            return;
+        }
+        synchronized (transfer) {
+            transfer.acknowledged = chunks;
+            transfer.notifyAll();
+        }
+    }
+
+    private void onEnd(long id, String arguments) {
+        Incoming transfer = incoming.get(id);
+        if (transfer == null) {
+            return;
+        }
+        long size;
+        try {
+            size = Long.parseLong(arguments);
+        } catch (NumberFormatException e) {
+            abort(transfer, "malformed");
+            printError("Cannot receive " + transfer.name + ": malformed end of transfer");
+            return;
+        }
+        if (!incoming.remove(id, transfer)) {
+            return;
+        }
+        try {
+            transfer.output.close();
+            if (transfer.transferred != size) {
+                throw new IOException("received " + transfer.transferred + " of " + size + " bytes");
+            }
+            sendTransfer("DONE " + transfer.peer + " " + id);
+            System.out.println(SharedFunctions.VERDE + transfer.describe() + " saved to " + transfer.path + SharedFunctions.RESET + ", " + transfer.throughput());
+        } catch (IOException e) {
+            incoming.put(id, transfer);
+            abort(transfer, "failed");
+            printError("Cannot receive " + transfer.name + ": " + e.getMessage());
+        }
+    }
+
+    private void onCancel(long id, String reason) {
+        Outgoing sending = outgoing.get(id);
+        if (sending != null) {
+            synchronized (sending) {
+                sending.cancelled = reason;
+                sending.notifyAll();
+            }
+            printError(sending.describe() + " cancelled: " + reason);
+        }
+        Incoming receiving = incoming.remove(id);
+        if (receiving != null) {
+            discard(receiving);
+            printError(receiving.describe() + " cancelled: " + reason);
+        }
+        for (Map.Entry<Integer, Offer> entry : offers.entrySet()) {
+            Offer offer = entry.getValue();
+            if (offer.id == id && offers.remove(entry.getKey(), offer)) {
+                printError("Offer " + entry.getKey() + " of " + offer.name + " from " + offer.peer + " withdrawn: " + reason);
+            }
+        }
+    }
+
+    /**
+     * Gives up an incoming transfer, telling the sender.
+     */
+    private void abort(Incoming transfer, String reason) {
+        if (incoming.remove(transfer.id, transfer)) {
+            discard(transfer);
+            sendQuietly("CANCEL " + transfer.peer + " " + transfer.id + " " + reason);
+        }
+    }
+
+    private void discard(Incoming transfer) {
+        try {
+            transfer.output.close();
+            Files.deleteIfExists(transfer.path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a control line to the other end of a transfer, through the server.
+     *
+     * @param control the control line
+     * @throws IOException if the connection fails
+     */
+    void sendTransfer(String control) throws IOException {
+        session.sendTransfer(control);
+    }
+
+    private void sendQuietly(String control) {
+        try {
+            sendTransfer(control);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void printError(String message) {
+        System.err.println(SharedFunctions.ROSSO + message + SharedFunctions.RESET);
+    }
+}
@@ -0,0 +1,239 @@
+package com.github.yagarea.chat.client;
+
+import com.github.yagarea.chat.shared.LatencyHistogram;
+import com.github.yagarea.chat.shared.LoginResponse;
+import com.github.yagarea.chat.shared.ThreadFactories;
+import com.github.yagarea.chat.shared.security.RSA;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A headless client opening many sessions to a server to measure its capacity.
+ * <p>
+ * Every session runs the same handshake and login as {@link Client}, registering
+ * {@code <prefix><n>} on the first run. Once all of them are logged in, messages are
+ * sent at a fixed rate from random sessions, a share of them as {@code @user} private
+ * messages and the rest as broadcasts. Each message carries the time at which it was
+ * due to be sent, so the delivery latency measured by the receiving sessions includes
+ * any delay in sending it. Throughput and latency percentiles are printed every
+ * {@link #REPORT_SECONDS} seconds and at the end. Settings are read from system
+ * properties, e.g.
+ * <pre>
+ * java -Dchat.load.sessions=2000 -Dchat.load.rate=500 -cp client.jar com.github.yagarea.chat.client.LoadGenerator localhost 4444
+ * </pre>
+ */
+public class LoadGenerator {
+    /** Number of concurrent sessions. */
+    static final int SESSIONS = Integer.getInteger("chat.load.sessions", 100);
+    /** Messages sent per second, by all sessions together. */
+    static final int RATE = Integer.getInteger("chat.load.rate", 100);
+    /** Seconds during which messages are sent, once all sessions are logged in. */
+    static final int DURATION_SECONDS = Integer.getInteger("chat.load.duration", 30);
+    /** Share of the messages sent as private messages, between 0 and 1. */
+    static final double PRIVATE_RATIO = Double.parseDouble(System.getProperty("chat.load.privateRatio", "0.2"));
+    /** Length of the text of each message, in characters. */
+    static final int MESSAGE_LENGTH = Integer.getInteger("chat.load.messageLength", 64);
+    /** Prefix of the usernames of the sessions. */
+    static final String USER_PREFIX = System.getProperty("chat.load.userPrefix", "load");
+    /** Number of sessions connecting at the same time. */
+    static final int CONNECT_THREADS = Integer.getInteger("chat.load.connectThreads", 32);
+    /** Threads reading and writing the sessions: {@code platform} or {@code virtual}. */
+    static final String THREADS = System.getProperty("chat.load.threads", "platform");
+
+    private static final String PASSWORD = "load";
+    private static final String MARKER = "~lg ";
+    private static final int TICKS_PER_SECOND = 100;
+    private static final int REPORT_SECONDS = 5;
+
+    private final List<ChatSession> sessions = new ArrayList<>();
+    private final List<String> usernames = new ArrayList<>();
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicLong disconnected = new AtomicLong();
+    private final String padding;
+
+    private LoadGenerator() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < MESSAGE_LENGTH) {
+            text.append("lorem ipsum ");
+        }
+        padding = text.substring(0, MESSAGE_LENGTH);
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param args args[0] is the server address and args[1] is the server port.
+     */
+    public static void main(String[] args) {
+        try {
+            new LoadGenerator().run(args[0], Integer.parseInt(args[1]));
+            System.exit(0);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private void run(String host, int port) throws IOException, InterruptedException {
+        System.out.println("Opening " + SESSIONS + " sessions to " + host + ":" + port);
+        // one key pair for every session: the server does not care and generating thousands would take minutes
+        RSA keys = RSA.generate(RSA.DEFAULT_BITS, RSA.DEFAULT_EXPONENT, RSA.DEFAULT_THREADS);
+        connectAll(host, port, keys);
+        System.out.println("Logged in " + sessions.size() + " sessions, " + failures.sum() + " failed, connect " + connectLatency.summary());
+        if (sessions.size() < 2) {
+            throw new IOException("Not enough sessions to send messages between");
+        }
+
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(ThreadFactories.platform("load-ticker-"));
+        ExecutorService senders = Executors.newFixedThreadPool(Math.max(1, Math.min(64, sessions.size())), ThreadFactories.forMode(THREADS, "load-sender-"));
+        long start = System.nanoTime();
+        long tickNanos = TimeUnit.SECONDS.toNanos(1) / TICKS_PER_SECOND;
+        ticker.scheduleAtFixedRate(new Runnable() {
+            private long tick;
+
+            @Override
+            public void run() {
+                long due = start + tick * tickNanos;
+                long messages = RATE * (tick + 1) / TICKS_PER_SECOND - RATE * tick / TICKS_PER_SECOND;
+                tick++;
+                for (long i = 0; i < messages; i++) {
+                    senders.execute(() -> sendOne(due));
+                }
+            }
+        }, 0, tickNanos, TimeUnit.NANOSECONDS);
+
+        long lastSent = 0;
+        long lastDelivered = 0;
+        for (int elapsed = REPORT_SECONDS; elapsed <= DURATION_SECONDS; elapsed += REPORT_SECONDS) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(REPORT_SECONDS));
+            long nowSent = sent.sum();
+            long nowDelivered = delivered.sum();
+            report(elapsed + "s", (nowSent - lastSent) / (double) REPORT_SECONDS, (nowDelivered - lastDelivered) / (double) REPORT_SECONDS);
+            lastSent = nowSent;
+            lastDelivered = nowDelivered;
+        }
+        ticker.shutdownNow();
+        senders.shutdown();
+        senders.awaitTermination(10, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // let the messages in flight arrive
+        Thread.sleep(2000);
+        report("total", sent.sum() / seconds, delivered.sum() / seconds);
+        for (ChatSession session : sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * Connects and logs in every session, a few at a time.
+     */
+    private void connectAll(String host, int port, RSA keys) throws InterruptedException {
+        ExecutorService connectors = Executors.newFixedThreadPool(CONNECT_THREADS, ThreadFactories.platform("load-connect-"));
+        List<Future<ChatSession>> connecting = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            String username = USER_PREFIX + i;
+            connecting.add(connectors.submit(() -> connect(host, port, keys, username)));
+        }
+        for (int i = 0; i < SESSIONS; i++) {
+            try {
+                sessions.add(connecting.get(i).get());
+                usernames.add(USER_PREFIX + i);
+            } catch (ExecutionException e) {
+                failures.increment();
+                System.err.println("Cannot open a session: " + e.getCause());
+            }
+        }
+        connectors.shutdown();
+    }
+
+    private ChatSession connect(String host, int port, RSA keys, String username) throws IOException {
+        long start = System.nanoTime();
+        ChatSession session = ChatSession.connect(host, port, keys);
+        LoginResponse response = session.login(username, PASSWORD);
+        while (response == LoginResponse.SERVER_BUSY) {
+            try {
+                Thread.sleep(session.getRetryAfterMillis() + ThreadLocalRandom.current().nextLong(session.getRetryAfterMillis() + 1));
+            } catch (InterruptedException e) {
+                session.close();
+                throw new InterruptedIOException(username + ": interrupted while the server was busy");
+            }
+            response = session.login(username, PASSWORD);
+        }
+        if (response != LoginResponse.LOGIN_ACCPETED && response != LoginResponse.REGISTERED) {
+            session.close();
+            throw new IOException(username + ": " + response);
+        }
+        connectLatency.record(System.nanoTime() - start);
+        Thread reader = ThreadFactories.forMode(THREADS, "load-reader-").newThread(() -> receiveLoop(session));
+        reader.setDaemon(true);
+        reader.start();
+        return session;
+    }
+
+    /**
+     * Reads the messages of one session and records the latency of those sent by the generator.
+     */
+    private void receiveLoop(ChatSession session) {
+        try {
+            String message;
+            while ((message = session.receive()) != null) {
+                long now = System.nanoTime();
+                int marker = message.indexOf(MARKER);
+                if (marker >= 0) {
+                    int end = message.indexOf(' ', marker + MARKER.length());
+                    long due = Long.parseLong(message.substring(marker + MARKER.length(), end));
+                    deliveryLatency.record(now - due);
+                    delivered.increment();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // counted below
+        }
+        disconnected.incrementAndGet();
+    }
+
+    /**
+     * Sends one message from a random session, privately to another random session or to everybody.
+     *
+     * @param due when the message was due to be sent, in {@link System#nanoTime()} time
+     */
+    private void sendOne(long due) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(sessions.size());
+        String text = MARKER + due + " " + padding;
+        if (random.nextDouble() < PRIVATE_RATIO) {
+            int to = random.nextInt(sessions.size() - 1);
+            if (to >= from) {
+                to++;
+            }
+            text = "@" + usernames.get(to) + " " + text;
+        }
+        try {
+            sessions.get(from).send(text);
+            sent.increment();
+        } catch (IOException e) {
+            failures.increment();
+        }
+    }
+
+    private void report(String label, double sentPerSecond, double deliveredPerSecond) {
+        System.out.println(String.format("%-6s sent %.1f msg/s, delivered %.1f msg/s, failures %d, disconnected %d, latency %s",
+                label, sentPerSecond, deliveredPerSecond, failures.sum(), disconnected.get(), deliveryLatency.summary()));
+    }
+}
@@ -1,37 +1,28 @@
 package com.github.yagarea.chat.client;
 
-import com.github.yagarea.chat.shared.security.RSA;
 import com.github.yagarea.chat.shared.SharedFunctions;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
 
 /**
  * The ResponsePrinterLoop class implements Runnable and is responsible for
- * continuously reading responses from a socket and printing the decrypted
- * messages to the console. It handles the decryption of messages using
- * an RSA decryptor and manages the connection state.
+ * continuously reading responses from a chat session and printing the decrypted
+ * messages to the console. It manages the connection state.
  */
 public class ResponsePrinterLoop implements Runnable {
-    private BufferedReader socketReader;
-    private RSA decryptor;
+    private final ChatSession session;
 
     /**
-     * Constructs a ResponsePrinterLoop with the specified socket and RSA decryptor.
+     * Constructs a ResponsePrinterLoop with the specified session.
      *
-     * @param input the socket from which to read messages
-     * @param decryptor the RSA decryptor used to decrypt messages
-     * @throws IOException if an I/O error occurs when creating the BufferedReader
+     * @param session the session from which to read messages
      */
-    public ResponsePrinterLoop(Socket input, RSA decryptor) throws IOException {
-        this.decryptor = decryptor;
-        this.socketReader = new BufferedReader(new InputStreamReader(input.getInputStream()));
+    public ResponsePrinterLoop(ChatSession session) {
+        this.session = session;
     }
 
     /**
-     * Continuously reads lines from the socket and prints the decrypted messages
+     * Continuously reads messages from the session and prints them
      * to the console. If the server disconnects, it clears the screen and
      * prints a disconnect message before terminating the application.
      */
@@ -39,9 +30,9 @@ public class ResponsePrinterLoop implements Runnable {
     public void run() {
         try {
             while (true) {
-                String line = socketReader.readLine();
-                if (line != null) {
-                    System.out.println(decryptor.decryptString(line));
+                String message = session.receive();
+                if (message != null) {
+                    System.out.println(message);
                 } else {
                     SharedFunctions.clearScreen();
                     System.err.println(SharedFunctions.ROSSO + "SERVER DISCONNECTED" + SharedFunctions.RESET);
@@ -53,14 +44,4 @@ public class ResponsePrinterLoop implements Runnable {
             e.printStackTrace();
         }
     }
-
-    /**
-     * Reads a line from the socket.
-     *
-     * @return the line read from the socket
-     * @throws IOException if an I/O error occurs
-     */
-    public String readLine() throws IOException {
-        return socketReader.readLine();
-    }
 }
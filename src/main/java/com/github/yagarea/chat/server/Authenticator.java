@@ -1,25 +1,45 @@
 package com.github.yagarea.chat.server;
 
+import com.github.yagarea.chat.shared.LatencyHistogram;
 import com.github.yagarea.chat.shared.security.ShaUtil;
+import com.google.common.util.concurrent.Striped;
 
-import java.io.*;
-import java.util.HashMap;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 
 /**
  * The Authenticator class is responsible for managing user authentication and registration.
  * It reads user credentials from a specified file and provides methods to register new users,
  * authenticate existing users, and change user passwords.
+ * <p>
+ * The file is a {@link CredentialLog}: every registration and password change appends
+ * one record, and obsolete records are compacted away in the background.
+ * <p>
+ * With {@link ServerConfig#AUTH_INDEX}, the users are not read at startup but looked up
+ * in a memory-mapped {@link CredentialIndex} of the file, and only the users written
+ * since the index was built are kept in memory, in front of it. The log is then
+ * compacted when the index is rebuilt, at startup.
+ * <p>
+ * The methods may be called by every connection thread at once. Users are kept in a
+ * {@link ConcurrentHashMap}, so lookups never block, and writes of the same user are
+ * serialized by one of {@link #WRITE_STRIPES} striped locks, while writes of different
+ * users are committed together by the log.
  */
-public class Authenticator {
+public class Authenticator implements Closeable {
 
+    private static final int WRITE_STRIPES = 1024;
 
-    private Pattern login = Pattern.compile("(\\w+):(\\d+):(.+)");
-    private Map<String, PasswordHolder> users;
+    private Map<String, PasswordHolder> users = new ConcurrentHashMap<>();
+    private final Striped<Lock> writeLocks = Striped.lock(WRITE_STRIPES);
 
-    private String file;
+    private final CredentialLog log;
+    private CredentialIndex index;
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
 
     /**
      * Constructs an Authenticator instance with the specified file.
@@ -28,25 +48,45 @@ public class Authenticator {
      * @param file the path to the file containing user credentials
      */
     public Authenticator(String file) {
-        this.file = file;
+        this(file, ServerConfig.AUTH_INDEX);
+    }
+
+    /**
+     * Constructs an Authenticator instance with the specified file, either reading every
+     * user or, with an index, only the users written since the index was built.
+     *
+     * @param file the path to the file containing user credentials
+     * @param indexed whether to look users up in a {@link CredentialIndex}, stored next to the file
+     */
+    public Authenticator(String file, boolean indexed) {
+        Path path = Paths.get(file);
+        this.log = new CredentialLog(path, indexed ? Integer.MAX_VALUE : ServerConfig.AUTH_COMPACT_THRESHOLD, ServerConfig.AUTH_FSYNC);
         try {
-            BufferedReader fileReader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
-            this.users = new HashMap<>();
-            while (true) {
-                String line = fileReader.readLine();
-                if (line != null && !line.equals("")) {
-                    Matcher lineMatcher = login.matcher(line);
-                    lineMatcher.find();
-                    users.put(lineMatcher.group(1), new PasswordHolder(lineMatcher.group(2), lineMatcher.group(3)));
-                } else {
-                    break;
-                }
+            if (indexed) {
+                this.index = CredentialIndex.openOrBuild(path, Paths.get(file + ".idx"));
+                this.users = new ConcurrentHashMap<>(log.readFrom(index.getCoveredSize()));
+            } else {
+                this.users = new ConcurrentHashMap<>(log.read());
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Looks a user up among the users written since startup, then in the index.
+     *
+     * @param username the username
+     * @return the salted password hash of the user, or null if the user is not registered
+     */
+    private PasswordHolder lookup(String username) {
+        PasswordHolder password = users.get(username);
+        if (password == null && index != null) {
+            password = index.get(username);
+        }
+        return password;
+    }
+
     /**
      * Checks if a user is registered.
      *
@@ -54,7 +94,7 @@ public class Authenticator {
      * @return true if the user is registered, false otherwise
      */
     public boolean userIsRegistered(String username) {
-        return users.get(username) != null;
+        return lookup(username) != null;
     }
 
     /**
@@ -65,25 +105,28 @@ public class Authenticator {
      * @return true if authentication is successful, false otherwise
      */
     public boolean authenticate(String descryptedUsername, String descryptedPassword) {
-        String hashPassword = ShaUtil.hash(users.get(descryptedUsername).getSalt() + descryptedPassword);
-        return hashPassword.equals(users.get(descryptedUsername).getHash());
+        PasswordHolder password = lookup(descryptedUsername);
+        String hashPassword = ShaUtil.hash(password.getSalt() + descryptedPassword);
+        return hashPassword.equals(password.getHash());
     }
 
     /**
-     * Registers a new user with the specified username and password.
+     * Registers a new user with the specified username and password, once its record
+     * is durable.
      *
      * @param newUsername the username of the new user
      * @param newPassword the password of the new user
+     * @return true if the user was registered, false if the username was taken meanwhile
+     *         or the record could not be written
      */
-    public void registerUser(String newUsername, String newPassword) {
+    public boolean registerUser(String newUsername, String newPassword) {
+        PasswordHolder password = new PasswordHolder(newPassword);
+        Lock lock = writeLocks.get(newUsername);
+        lock.lock();
         try {
-            PrintWriter fileWriter = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true)));
-            PasswordHolder newPasswordHolder = new PasswordHolder(newPassword);
-            fileWriter.println(newUsername + ":" + newPasswordHolder.getSalt() + ":" + newPasswordHolder.getHash());
-            fileWriter.flush();
-            users.put(newUsername, newPasswordHolder);
-        } catch (IOException e) {
-            e.printStackTrace();
+            return lookup(newUsername) == null && write(newUsername, password, false);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -92,18 +135,58 @@ public class Authenticator {
      *
      * @param username   the username of the user whose password is to be changed
      * @param newPassword the new password for the user
+     * @return true once the new password is durable, false if it could not be written
      */
-    public void changePassword(String username, String newPassword) {
+    public boolean changePassword(String username, String newPassword) {
+        PasswordHolder password = new PasswordHolder(newPassword);
+        Lock lock = writeLocks.get(username);
+        lock.lock();
         try {
-            PrintWriter fileWriter = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, false)));
-            PasswordHolder newPasswordHolder = new PasswordHolder(newPassword);
-            users.put(username, newPasswordHolder);
-            for (String userNameInSet : users.keySet()) {
-                fileWriter.println(userNameInSet + ":" + users.get(userNameInSet).getSalt() + ":" + users.get(userNameInSet).getHash());
-            }
-            fileWriter.flush();
+            return write(username, password, lookup(username) != null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the record of a user to the credential file and, once it is durable,
+     * updates the map of users. Must be called with the write lock of the user held.
+     *
+     * @param username the username of the user
+     * @param password the salted password hash of the user
+     * @param replaces whether the user already has a record
+     * @return true if the record was written
+     */
+    private boolean write(String username, PasswordHolder password, boolean replaces) {
+        long start = System.nanoTime();
+        try {
+            log.append(username, password, replaces);
+            users.put(username, password);
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
+        } finally {
+            writeLatency.record(System.nanoTime() - start);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the histogram of the time spent writing the credentials file.
+     *
+     * @return the write latency histogram
+     */
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * Closes the credential file.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Delivers one message to many clients. Every recipient has its own cipher, so the
+ * message is encrypted once per recipient. Small rooms are served sequentially on
+ * the sender's thread; from {@link ServerConfig#BROADCAST_PARALLEL_THRESHOLD}
+ * recipients up, the encryptions are split across a bounded {@link ForkJoinPool}.
+ * The caller waits for the fan-out to finish, which keeps the messages in order for
+ * every recipient; the broadcasts of one room are fanned out one at a time by
+ * {@link Rooms}.
+ */
+public class BroadcastFanOut {
+    private static final int LEAF_SIZE = 32;
+
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Constructs a fan-out with its own pool.
+     *
+     * @param parallelism the number of threads encrypting large broadcasts
+     * @param parallelThreshold the number of recipients from which broadcasts are parallel
+     */
+    public BroadcastFanOut(int parallelism, int parallelThreshold) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Encrypts and queues a message for every recipient but the sender.
+     *
+     * @param recipients the connections to deliver to
+     * @param sender the connection which must not receive its own message, or null
+     * @param message the plain text message
+     */
+    public void broadcast(Collection<ClientConnection> recipients, ClientConnection sender, String message) {
+        long start = System.nanoTime();
+        List<ClientConnection> targets = new ArrayList<>(recipients.size());
+        for (ClientConnection cC : recipients) {
+            if (cC != sender) {
+                targets.add(cC);
+            }
+        }
+        if (targets.size() < parallelThreshold) {
+            for (ClientConnection cC : targets) {
+                cC.sendBroadcast(message);
+            }
+        } else {
+            pool.invoke(new EncryptTask(targets, 0, targets.size(), message));
+        }
+        latency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Returns the histogram of the time spent encrypting and queueing broadcasts.
+     *
+     * @return the fan-out latency histogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the number of recipients from which broadcasts are parallel.
+     *
+     * @return the parallel threshold
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Splits a range of recipients in halves until it is small enough to encrypt in one go.
+     */
+    private static class EncryptTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ClientConnection> targets;
+        private final int from;
+        private final int to;
+        private final String message;
+
+        EncryptTask(List<ClientConnection> targets, int from, int to, String message) {
+            this.targets = targets;
+            this.from = from;
+            this.to = to;
+            this.message = message;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE) {
+                for (int i = from; i < to; i++) {
+                    targets.get(i).sendBroadcast(message);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new EncryptTask(targets, from, middle, message), new EncryptTask(targets, middle, to, message));
+            }
+        }
+    }
+}
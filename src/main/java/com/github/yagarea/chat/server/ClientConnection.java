@@ -1,17 +1,28 @@
 package com.github.yagarea.chat.server;
 
+import com.github.yagarea.chat.shared.Frame;
+import com.github.yagarea.chat.shared.Handshake;
 import com.github.yagarea.chat.shared.LoginResponse;
+import com.github.yagarea.chat.shared.security.AesGcmCipher;
+import com.github.yagarea.chat.shared.security.CompressingCipher;
+import com.github.yagarea.chat.shared.security.MessageCipher;
 import com.github.yagarea.chat.shared.security.RSA;
+import com.github.yagarea.chat.shared.security.RsaMessageCipher;
 import com.github.yagarea.chat.shared.SharedFunctions;
 
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.math.BigInteger;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,164 +30,846 @@ import java.util.regex.Pattern;
  * Represents a connection to a client in the chat server.
  * This class handles user authentication, message decryption/encryption,
  * and communication with other clients in the chat room.
+ * <p>
+ * The protocol is driven by the transport calling {@link #onLine(String)} or, once
+ * binary frames have been negotiated, {@link #onFrame(Frame)}, so the same
+ * handshake, login and message routing is shared by the blocking
+ * {@link SocketClientConnection} and the non-blocking {@link NioClientConnection}.
+ * Outgoing lines and frames are appended to the {@link OutboundQueue} of the connection, which
+ * subclasses drain to their transport; they also provide {@link #close()}.
+ * <p>
+ * The queue of a client which stops reading is bounded by two watermarks of queued
+ * bytes, {@link ServerConfig#OUTBOUND_LOW_WATERMARK} and
+ * {@link ServerConfig#OUTBOUND_HIGH_WATERMARK}, each with its own
+ * {@link OutboundQueue.OverflowPolicy}, so a slow consumer never holds up its senders
+ * nor fills the heap of the server.
+ * <p>
+ * Every connection has at most one timeout pending on the {@link HashedTimingWheel} of
+ * the server: {@link ServerConfig#HANDSHAKE_TIMEOUT} until the client has sent its key,
+ * then {@link ServerConfig#LOGIN_TIMEOUT} until it has logged in, and from then on, if
+ * it accepted {@link Handshake#HEARTBEAT}, a heartbeat every
+ * {@link ServerConfig#HEARTBEAT_INTERVAL} it has been quiet, until it has been silent for
+ * {@link ServerConfig#IDLE_TIMEOUT}. Other clients rely on TCP keep-alive.
+ * <p>
+ * Clients speaking protocol version 2 send a {@link Handshake#HELLO} line after their
+ * public key and get an AES session key back; older clients keep using pure RSA.
+ * See {@link Handshake}.
  */
-public class ClientConnection {
+public abstract class ClientConnection {
     private static final Pattern PRIVATE_MESSAGE_NICKNAME_PATTERN = Pattern.compile("@(\\w+) (.*)");
     private static final Pattern NICKNAME_RULES = Pattern.compile("\\w+");
+    private static final Pattern HISTORY_PATTERN = Pattern.compile(":history(?: (\\d{1,9}))?");
+    private static final int DEFAULT_HISTORY = 20;
+    private static final Pattern CLIENTS_PATTERN = Pattern.compile(":clients(?: @(\\w+))?(?: (\\d{1,9}))?");
+    private static final Pattern JOIN_PATTERN = Pattern.compile(":join (\\w{1,32})");
 
+    /**
+     * The steps of the protocol, in the order in which a client walks through them.
+     */
+    private enum State {
+        AWAITING_EXPONENT,
+        AWAITING_MODULUS,
+        AWAITING_USERNAME,
+        AWAITING_PASSWORD,
+        AUTHENTICATING,
+        LISTENING,
+        DISCONNECTED
+    }
 
-    protected final String username;
-    private final PrintWriter socketWriter;
+    protected volatile String username;
     private final Map<String, ClientConnection> clients;
     private final RSA decryptor;
-    private final RSA encryptor;
-    private final BufferedReader socketReader;
+    private RSA clientKey;
+    private volatile MessageCipher cipher;
+    private int protocolVersion = Handshake.LEGACY_VERSION;
+    private volatile boolean binaryFrames;
     private final Authenticator authenticator;
-    protected final Socket clientSocket;
+    private final FileRelay fileRelay;
+    private final ServerMetrics metrics;
+    private final LoginExecutor loginExecutor;
+    private final MessageHistory history;
+    private final Mailboxes mailboxes;
+    private final Rooms rooms;
+    private volatile Rooms.Room room;
+    private final ClusterNode cluster;
+    private final Presence presence;
+    protected final OutboundQueue outbound = new OutboundQueue();
+    private final AtomicBoolean slow = new AtomicBoolean();
+    private final AtomicBoolean evicted = new AtomicBoolean();
+    private final HashedTimingWheel timers;
+    private volatile HashedTimingWheel.Timeout timeout;
+    private volatile long lastRead = System.nanoTime();
+    private volatile boolean heartbeat;
+
+    private volatile State state = State.AWAITING_EXPONENT;
+    private volatile boolean opened;
+    private BigInteger clientExponent;
+    private Supplier<String> encryptedUsername;
 
     /**
      * Constructs a ClientConnection instance.
      *
-     * @param clientSocket the socket connected to the client
-     * @param clients a map of currently connected clients
-     * @param decryptor the RSA decryptor for incoming messages
-     * @param authenticator the authenticator for user login
-     * @throws IOException if an I/O error occurs when creating input/output streams
+     * @param context the clients, keys and services of the server
      */
-    ClientConnection(Socket clientSocket, Map<String, ClientConnection> clients, RSA decryptor, Authenticator authenticator) throws IOException {
-        this.socketReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        this.socketWriter = new PrintWriter(clientSocket.getOutputStream());
-        this.clients = clients;
-        this.decryptor = decryptor;
-        this.clientSocket = clientSocket;
+    ClientConnection(ServerContext context) {
+        this.clients = context.getClients();
+        this.decryptor = context.getDecryptor();
+        this.authenticator = context.getAuthenticator();
+        this.fileRelay = context.getFileRelay();
+        this.metrics = context.getMetrics();
+        this.loginExecutor = context.getLoginExecutor();
+        this.history = context.getHistory();
+        this.mailboxes = context.getMailboxes();
+        this.rooms = context.getRooms();
+        this.cluster = context.getCluster();
+        this.presence = context.getPresence();
+        this.timers = context.getTimers();
+    }
 
+    /**
+     * Starts the handshake by sending the server's public key to the client.
+     * Must be called once the transport is ready to send.
+     */
+    protected void open() {
+        opened = true;
+        metrics.connectionOpened();
+        rearm(this::onHandshakeTimeout, ServerConfig.HANDSHAKE_TIMEOUT);
         sendEncryptionKeys();
-        this.authenticator = authenticator;
-        encryptor = makeEncryptor();
-        this.username = authenticateUser();
     }
 
     /**
-     * Authenticates the user by reading encrypted username and password,
+     * Returns the metrics in which the transport counts its socket writes.
+     *
+     * @return the metrics of the server
+     */
+    protected ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Tells the transport whether the client now sends binary frames instead of lines.
+     *
+     * @return true once binary frames have been negotiated
+     */
+    protected boolean isBinaryFrames() {
+        return binaryFrames;
+    }
+
+    /**
+     * Processes one line received from the client according to the current protocol state.
+     *
+     * @param line a line received from the client, without the line terminator
+     */
+    protected void onLine(String line) {
+        metrics.messageIn(line.length() + 1);
+        lastRead = System.nanoTime();
+        if (heartbeat && line.equals(Handshake.PONG)) {
+            return;
+        }
+        if (state == State.AWAITING_USERNAME && protocolVersion == Handshake.LEGACY_VERSION && Handshake.isHello(line)) {
+            negotiateSessionCipher(line);
+            return;
+        }
+        switch (state) {
+            case AWAITING_EXPONENT:
+                clientExponent = new BigInteger(line);
+                state = State.AWAITING_MODULUS;
+                break;
+            case AWAITING_MODULUS:
+                clientKey = makeEncryptor(clientExponent, new BigInteger(line));
+                cipher = metrics.timed(new RsaMessageCipher(clientKey, decryptor));
+                state = State.AWAITING_USERNAME;
+                rearm(this::onHandshakeTimeout, ServerConfig.LOGIN_TIMEOUT);
+                break;
+            default:
+                MessageCipher lineCipher = cipher;
+                onEncryptedMessage(() -> lineCipher.decryptString(line));
+                break;
+        }
+    }
+
+    /**
+     * Processes one binary frame received from the client.
+     *
+     * @param frame a frame received from the client
+     */
+    protected void onFrame(Frame frame) {
+        metrics.messageIn(frame.getBytes().length);
+        lastRead = System.nanoTime();
+        if (frame.getType() == Frame.MESSAGE) {
+            MessageCipher frameCipher = cipher;
+            onEncryptedMessage(() -> new String(frameCipher.decrypt(frame.getPayload()), StandardCharsets.UTF_8));
+        } else if (state == State.LISTENING && frame.getType() == Frame.TRANSFER) {
+            fileRelay.onControl(this, clients, new String(cipher.decrypt(frame.getPayload()), StandardCharsets.UTF_8));
+        } else if (state == State.LISTENING && frame.getType() == Frame.CHUNK) {
+            fileRelay.onChunk(this, frame);
+        }
+    }
+
+    /**
+     * Processes one encrypted message according to the current protocol state.
+     * Messages are decrypted only when they are used.
+     *
+     * @param encryptedMessage decrypts the message received from the client
+     */
+    private void onEncryptedMessage(Supplier<String> encryptedMessage) {
+        switch (state) {
+            case AWAITING_USERNAME:
+                encryptedUsername = encryptedMessage;
+                state = State.AWAITING_PASSWORD;
+                break;
+            case AWAITING_PASSWORD:
+                Supplier<String> loginUsername = encryptedUsername;
+                encryptedUsername = null;
+                state = State.AUTHENTICATING;
+                if (!loginExecutor.submit(() -> authenticateUser(loginUsername, encryptedMessage))) {
+                    metrics.loginAttempt(LoginResponse.SERVER_BUSY);
+                    if (protocolVersion == Handshake.LEGACY_VERSION) {
+                        // the original client cannot parse the answer, it can only connect again
+                        disconnect();
+                        break;
+                    }
+                    state = State.AWAITING_USERNAME;
+                    sendEncrypeted(LoginResponse.SERVER_BUSY.name() + ":" + loginExecutor.getRetryAfterMillis());
+                }
+                break;
+            case LISTENING:
+                handleMessage(encryptedMessage.get());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Authenticates the user from the encrypted username and password,
      * decrypting them, and validating against the registered users.
+     * On success the connection is added to the map of connected clients.
+     * Runs on a thread of the {@link LoginExecutor}; the client waits for the answer,
+     * so nothing else is received in the meantime.
      *
-     * @return the authenticated username
-     * @throws IOException if an I/O error occurs during reading
-     */
-    private String authenticateUser() throws IOException {
-        while (true) {
-            String encryptedUsername = socketReader.readLine();
-            String decryptedUsername = decryptor.decryptString(encryptedUsername);
-            String encryptedPassword = socketReader.readLine();
-            String decryptedPassword = decryptor.decryptString(encryptedPassword);
-
-            if (NICKNAME_RULES.matcher(decryptedUsername).matches()) {
-                if (!clients.containsKey(decryptedUsername)) {
-                    if (authenticator.userIsRegistered(decryptedUsername)) {
-                        if (authenticator.authenticate(decryptedUsername, decryptedPassword)) {
-                            sendEncrypeted(LoginResponse.LOGIN_ACCPETED.name());
-                            return decryptedUsername;
-                        } else {
-                            sendEncrypeted(LoginResponse.PASSWORD_INVALID.name());
-                        }
-                    } else {
-                        authenticator.registerUser(decryptedUsername, decryptedPassword);
-                        sendEncrypeted(LoginResponse.REGISTERED.name());
-                        return decryptedUsername;
+     * @param encryptedUsername decrypts the username sent by the client
+     * @param encryptedPassword decrypts the password sent by the client
+     */
+    private void authenticateUser(Supplier<String> encryptedUsername, Supplier<String> encryptedPassword) {
+        try {
+            String decryptedUsername = encryptedUsername.get();
+            String decryptedPassword = encryptedPassword.get();
+            LoginResponse response = login(decryptedUsername, decryptedPassword);
+            metrics.loginAttempt(response);
+            boolean accepted = response == LoginResponse.LOGIN_ACCPETED || response == LoginResponse.REGISTERED;
+            synchronized (this) {
+                if (state == State.DISCONNECTED) {
+                    if (accepted) {
+                        clients.remove(decryptedUsername, this);
                     }
+                    return;
+                }
+                if (accepted) {
+                    username = decryptedUsername;
+                    room = rooms.join(rooms.getDefaultRoom(), this);
+                }
+                // before answering, so that the next line of the client finds the new state
+                state = accepted ? State.LISTENING : State.AWAITING_USERNAME;
+            }
+            sendEncrypeted(response.name());
+            if (accepted) {
+                if (heartbeat) {
+                    rearm(this::checkHeartbeat, ServerConfig.HEARTBEAT_INTERVAL);
                 } else {
-                    sendEncrypeted(LoginResponse.ALREADY_LOGGED_IN.name());
+                    rearm(null, 0);
                 }
-            } else {
-                sendEncrypeted(LoginResponse.INVALID_USERNAME.name());
+                presence.add(username);
+                if (cluster != null) {
+                    cluster.userJoined(username, room.getName());
+                }
+                onJoined();
+                deliverMailbox();
             }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            disconnect();
         }
+    }
 
+    /**
+     * Validates the credentials of a user and, if they are accepted, adds the connection
+     * to the map of connected clients. In a cluster, a new name is only registered if no
+     * other node knows it, which may block for {@link ClusterNode#QUERY_MILLIS}.
+     *
+     * @param decryptedUsername the username sent by the client
+     * @param decryptedPassword the password sent by the client
+     * @return the answer to send to the client
+     */
+    private LoginResponse login(String decryptedUsername, String decryptedPassword) {
+        if (NICKNAME_RULES.matcher(decryptedUsername).matches()) {
+            if (!clients.containsKey(decryptedUsername) && (cluster == null || !cluster.isOnline(decryptedUsername))) {
+                if (!authenticator.userIsRegistered(decryptedUsername) && isRegisteredElsewhere(decryptedUsername)) {
+                    // the name belongs to a user of another node of the cluster
+                    return LoginResponse.INVALID_USERNAME;
+                }
+                LoginResponse response;
+                if (!authenticator.userIsRegistered(decryptedUsername) && authenticator.registerUser(decryptedUsername, decryptedPassword)) {
+                    response = LoginResponse.REGISTERED;
+                } else if (authenticator.userIsRegistered(decryptedUsername) && authenticator.authenticate(decryptedUsername, decryptedPassword)) {
+                    // also when another connection registered the name first
+                    response = LoginResponse.LOGIN_ACCPETED;
+                } else {
+                    return LoginResponse.PASSWORD_INVALID;
+                }
+                if (clients.putIfAbsent(decryptedUsername, this) == null) {
+                    return response;
+                }
+            }
+            return LoginResponse.ALREADY_LOGGED_IN;
+        }
+        return LoginResponse.INVALID_USERNAME;
+    }
+
+    /**
+     * Tells whether another node of the cluster has registered a name, which can then
+     * not be registered here.
+     *
+     * @param username the name to register
+     * @return true if the name is taken, or could not be checked, on another node
+     */
+    private boolean isRegisteredElsewhere(String username) {
+        if (cluster == null) {
+            return false;
+        }
+        try {
+            return cluster.isRegisteredElsewhere(username);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
     }
 
     /**
-     * Starts listening for messages from the client and processes them.
-     * Handles private messages, client list requests, and password changes.
+     * Answers the hello line of a version 2 client with a fresh AES session key,
+     * encrypted with the client's public key, and switches to the session cipher
+     * and to the accepted features. With compression, the session cipher only times
+     * the encryption of the compressed messages.
+     *
+     * @param hello the hello line of the client
      */
-    public void startListenig() {
+    private void negotiateSessionCipher(String hello) {
+        List<String> accepted = new ArrayList<>();
+        for (String feature : Handshake.offeredFeatures(hello)) {
+            if (feature.equals(Handshake.BINARY) && ServerConfig.BINARY_FRAMES
+                    || feature.equals(Handshake.DEFLATE) && ServerConfig.COMPRESSION
+                    || feature.equals(Handshake.HEARTBEAT) && ServerConfig.HEARTBEAT_INTERVAL > 0 && timers != null) {
+                accepted.add(feature);
+            }
+        }
+        AesGcmCipher sessionCipher = AesGcmCipher.generate();
+        long start = System.nanoTime();
+        String welcome = Handshake.welcome(sessionCipher, clientKey, accepted);
+        metrics.rsaEncrypted(System.nanoTime() - start);
+        send(welcome);
+        cipher = metrics.timed(sessionCipher);
+        if (accepted.contains(Handshake.DEFLATE)) {
+            cipher = new CompressingCipher(cipher, ServerConfig.COMPRESS_THRESHOLD);
+        }
+        protocolVersion = Handshake.VERSION;
+        binaryFrames = accepted.contains(Handshake.BINARY);
+        heartbeat = accepted.contains(Handshake.HEARTBEAT);
+    }
+
+    /**
+     * Announces the freshly logged in user to the chatting room.
+     */
+    private void onJoined() {
         broadcast(SharedFunctions.BLU+"SERVER: " + SharedFunctions.GIALLO + username + SharedFunctions.RESET + " has joined this chatting room");
         System.out.println("SERVER: " + username + " has joined this chatting room");
-        try {
-            while (true) {
-                String clientData = socketReader.readLine();
-                if (clientData == null) {
-                    disconnect();
-                    break;
-                }
+    }
 
-                String message = decryptor.decryptString(clientData);
-                Matcher privateMessageMatcher = PRIVATE_MESSAGE_NICKNAME_PATTERN.matcher(message);
-                if (message.equals(":clients")) {
-                    sendClientList();
-                } else if (message.startsWith(":changePassword")) {
-                    String newspwd=message.substring(":changePassword ".length());
-                    authenticator.changePassword(username, newspwd);
-                    sendEncrypeted(SharedFunctions.GIALLO + "PASSWORD CHANGED" + SharedFunctions.RESET);
-                } else if (privateMessageMatcher.matches()) {
-                    sendPrivateMessage(privateMessageMatcher);
-                } else {
-                    broadcast(SharedFunctions.MAGENTA + username + ": " + SharedFunctions.RESET + message);
-                }
+    /**
+     * Processes a decrypted message from a logged in client.
+     * Handles private messages, client list and history requests, rooms, and password changes.
+     *
+     * @param message the decrypted message
+     */
+    private void handleMessage(String message) {
+        Matcher privateMessageMatcher = PRIVATE_MESSAGE_NICKNAME_PATTERN.matcher(message);
+        Matcher historyMatcher = HISTORY_PATTERN.matcher(message);
+        Matcher joinMatcher = JOIN_PATTERN.matcher(message);
+        Matcher clientsMatcher = CLIENTS_PATTERN.matcher(message);
+        if (clientsMatcher.matches()) {
+            sendClientList(clientsMatcher.group(1), clientsMatcher.group(2));
+        } else if (message.equals(":rooms")) {
+            sendRoomList();
+        } else if (joinMatcher.matches()) {
+            switchRoom(joinMatcher.group(1));
+        } else if (message.equals(":leave")) {
+            switchRoom(rooms.getDefaultRoom());
+        } else if (historyMatcher.matches()) {
+            sendHistory(historyMatcher.group(1));
+        } else if (message.startsWith(":changePassword")) {
+            changePassword(message.substring(":changePassword ".length()));
+        } else if (privateMessageMatcher.matches()) {
+            sendPrivateMessage(privateMessageMatcher);
+        } else {
+            String formatted = SharedFunctions.MAGENTA + username + ": " + SharedFunctions.RESET + message;
+            Rooms.Room current = room;
+            broadcast(current, formatted);
+            if (history != null) {
+                history.append(current.getName().equals(rooms.getDefaultRoom()) ? formatted : "#" + current.getName() + " " + formatted);
             }
-        } catch (IOException e) {
-            disconnect();
         }
     }
+
+    /**
+     * Changes the password of the user on a thread of the {@link LoginExecutor}, as the
+     * change waits for the credential file to be synced to disk, and confirms it once
+     * it is durable.
+     *
+     * @param newPassword the new password
+     */
+    private void changePassword(String newPassword) {
+        String user = username;
+        boolean queued = loginExecutor.submit(() -> {
+            if (authenticator.changePassword(user, newPassword)) {
+                sendEncrypeted(SharedFunctions.GIALLO + "PASSWORD CHANGED" + SharedFunctions.RESET);
+            } else {
+                sendEncrypeted(SharedFunctions.ROSSO + "PASSWORD NOT CHANGED, TRY AGAIN LATER" + SharedFunctions.RESET);
+            }
+        });
+        if (!queued) {
+            sendEncrypeted(SharedFunctions.ROSSO + "SERVER BUSY, PASSWORD NOT CHANGED" + SharedFunctions.RESET);
+        }
+    }
+
     /**
      * Removes the current user from the list of active clients and broadcasts
      * a message to the remaining users indicating that the user has disconnected
-     * from the chat room.
+     * from the chat room. Calling it more than once has no further effect.
      */
-    private void disconnect() {
-        clients.remove(username);
-        broadcast(SharedFunctions.GIALLO + username + " has disconnected this chatting room" + SharedFunctions.RESET);
+    protected void disconnect() {
+        synchronized (this) {
+            if (state == State.DISCONNECTED) {
+                return;
+            }
+            state = State.DISCONNECTED;
+        }
+        rearm(null, 0);
+        close();
+        if (opened) {
+            metrics.connectionClosed();
+        }
+        fileRelay.onDisconnect(this);
+        if (username != null && clients.remove(username, this)) {
+            rooms.leave(room, this);
+            presence.remove(username);
+            if (cluster != null) {
+                cluster.userLeft(username);
+            }
+            broadcast(SharedFunctions.GIALLO + username + " has disconnected this chatting room" + SharedFunctions.RESET);
+        }
     }
 
     /**
-     * Broadcasts a message to all connected clients
+     * Broadcasts a message to the other members of the room of this client
      * @param message a message to broadcast
      */
     private void broadcast(String message) {
-        for (ClientConnection cC : clients.values()) {
-            if (cC != this) {
-                cC.sendEncrypeted(message);
+        broadcast(room, message);
+    }
+
+    /**
+     * Broadcasts a message to the other members of a room, on this server and on the
+     * other nodes of the cluster.
+     *
+     * @param target the room
+     * @param message a message to broadcast
+     */
+    private void broadcast(Rooms.Room target, String message) {
+        target.broadcast(this, message);
+        if (cluster != null) {
+            cluster.broadcast(target.getName(), message);
+        }
+    }
+
+    /**
+     * Returns the name of the room of the client.
+     *
+     * @return the name of the room, or null if the client is not logged in
+     */
+    String getRoomName() {
+        Rooms.Room current = room;
+        return current == null ? null : current.getName();
+    }
+
+    /**
+     * Moves the client to another room, creating it if needed, and tells the members
+     * of both rooms.
+     *
+     * @param name the name of the room to join
+     */
+    private void switchRoom(String name) {
+        Rooms.Room previous = room;
+        if (previous.getName().equals(name)) {
+            sendEncrypeted(SharedFunctions.GIALLO + "YOU ARE ALREADY IN #" + name + SharedFunctions.RESET);
+            return;
+        }
+        synchronized (this) {
+            // a disconnected client has already left its room
+            if (state == State.DISCONNECTED) {
+                return;
             }
+            room = rooms.join(name, this);
+        }
+        rooms.leave(previous, this);
+        if (cluster != null) {
+            cluster.userJoined(username, name);
         }
+        broadcast(previous, SharedFunctions.GIALLO + username + " has left this chatting room" + SharedFunctions.RESET);
+        sendEncrypeted(SharedFunctions.GIALLO + "YOU ARE NOW IN #" + name + SharedFunctions.RESET);
+        broadcast(SharedFunctions.BLU + "SERVER: " + SharedFunctions.GIALLO + username + SharedFunctions.RESET + " has joined this chatting room");
     }
 
     /**
-     * Sends encrypted data via socket
-     * @param data an encrypted message
+     * Sends an encrypted list of the rooms and their number of members, marking the
+     * room of the client.
      */
-    private void send(String data) {
-        try {
-            socketWriter.println(data);
-            socketWriter.flush();
-        } catch (Exception e) {
-            disconnect();
+    private void sendRoomList() {
+        String current = room.getName();
+        for (Map.Entry<String, Integer> entry : rooms.list().entrySet()) {
+            sendEncrypeted((entry.getKey().equals(current) ? "*" : "\t") + "#" + entry.getKey() + " (" + entry.getValue() + ")");
         }
     }
 
     /**
-     * Calls encryptor.encryptString on message and sends the result to send()
+     * Queues data to be written to the client, terminated by a line separator.
+     * Never blocks on the socket of the client.
+     *
+     * @param data an encrypted message or a handshake line
+     */
+    protected void send(String data) {
+        enqueue((data + "\n").getBytes(StandardCharsets.UTF_8), 1, false, true);
+    }
+
+    /**
+     * Closes the connection once every frame queued so far has been written,
+     * e.g. to make sure a client receives the reason why it is being kicked.
+     */
+    public void closeAfterFlush() {
+        outbound.add(OutboundQueue.CLOSE);
+        onQueued();
+    }
+
+    /**
+     * Called after a frame was added to the outbound queue, so that the writer
+     * of the transport can pick it up.
+     */
+    protected abstract void onQueued();
+
+    /**
+     * Returns the number of frames waiting to be written to this client.
+     *
+     * @return the depth of the outbound queue
+     */
+    public int getQueueDepth() {
+        return outbound.depth();
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written to this client.
+     *
+     * @return the pending bytes of the outbound queue
+     */
+    public long getQueuedBytes() {
+        return outbound.pendingBytes();
+    }
+
+    /**
+     * Closes the underlying transport of this connection.
+     */
+    public abstract void close();
+
+    /**
+     * Encrypts message with the cipher of the session and sends the result as a
+     * binary frame or through send()
      * @param message a message to broadcast
      */
     protected void sendEncrypeted(String message) {
-        send(encryptor.encryptString(message));
+        enqueue(encrypt(message), 1, false, true);
+    }
+
+    /**
+     * Encrypts a message like {@link #sendEncrypeted(String)}, for a message which cannot
+     * be sent again, so that {@link OutboundQueue.OverflowPolicy#DROP_OLDEST} keeps it.
+     *
+     * @param message the plain text message
+     */
+    private void sendEncryptedKept(String message) {
+        enqueue(encrypt(message), 1, false, false);
+    }
+
+    /**
+     * Encrypts a broadcast like {@link #sendEncrypeted(String)}. Broadcasts are the first
+     * messages given up for a slow client, see {@link OutboundQueue.OverflowPolicy#DROP_BROADCASTS}.
+     *
+     * @param message a message broadcast to the room of the client
+     */
+    void sendBroadcast(String message) {
+        enqueue(encrypt(message), 1, true, true);
+    }
+
+    /**
+     * Encrypts a message with the cipher of the session, as a binary frame or a line.
+     *
+     * @param message the plain text message
+     * @return the bytes to queue
+     */
+    private byte[] encrypt(String message) {
+        if (binaryFrames) {
+            return Frame.encode(Frame.MESSAGE, cipher.encrypt(message.getBytes(StandardCharsets.UTF_8)));
+        }
+        return (cipher.encryptString(message) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encrypts a file transfer control line with the cipher of the session and sends
+     * it as a {@link Frame#TRANSFER} frame. Only binary sessions take part in transfers.
+     *
+     * @param control the control line
+     */
+    void sendTransferControl(String control) {
+        sendFrame(Frame.encode(Frame.TRANSFER, cipher.encrypt(control.getBytes(StandardCharsets.UTF_8))));
     }
 
     /**
-     * Sends an encrypted list of all the connected clients
+     * Queues an encoded frame to be written to the client.
+     *
+     * @param frame the header followed by the payload
      */
-    private void sendClientList() {
-        for (String nickname : clients.keySet()) {
-            sendEncrypeted("\t" + nickname);
+    void sendFrame(byte[] frame) {
+        enqueue(frame, 1, false, true);
+    }
+
+    /**
+     * Queues bytes to be written to the client, unless it reads too slowly: beyond each
+     * watermark of queued bytes, the policy of that watermark decides.
+     *
+     * @param bytes the lines or frames to queue
+     * @param messages the number of messages they hold
+     * @param broadcast whether they are a broadcast, which may be dropped
+     * @param droppable false if they must survive {@link OutboundQueue#dropOldest()}
+     */
+    private void enqueue(byte[] bytes, int messages, boolean broadcast, boolean droppable) {
+        if (evicted.get()) {
+            return;
         }
+        long pending = outbound.pendingBytes() + bytes.length;
+        if (pending > ServerConfig.OUTBOUND_HIGH_WATERMARK) {
+            if (!overflow(ServerConfig.OUTBOUND_HIGH_POLICY, ServerConfig.OUTBOUND_HIGH_WATERMARK, bytes.length, broadcast, pending)) {
+                return;
+            }
+        } else if (pending > ServerConfig.OUTBOUND_LOW_WATERMARK) {
+            if (!overflow(ServerConfig.OUTBOUND_LOW_POLICY, ServerConfig.OUTBOUND_LOW_WATERMARK, bytes.length, broadcast, pending)) {
+                return;
+            }
+        } else if (slow.get()) {
+            slow.set(false);
+        }
+        metrics.messagesOut(messages, bytes.length);
+        outbound.add(bytes, droppable);
+        onQueued();
+    }
+
+    /**
+     * Applies the policy of a watermark to bytes which would take the queue above it,
+     * logging the client once each time it falls behind.
+     *
+     * @return true if the bytes must still be queued
+     */
+    private boolean overflow(OutboundQueue.OverflowPolicy policy, long watermark, int length, boolean broadcast, long pending) {
+        if (slow.compareAndSet(false, true)) {
+            metrics.slowConsumer();
+            System.out.println("SERVER: " + getName() + " reads too slowly, " + pending + " bytes queued");
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                while (outbound.pendingBytes() + length > watermark && outbound.dropOldest()) {
+                    metrics.outboundDropped();
+                }
+                return true;
+            case DROP_BROADCASTS:
+                if (broadcast) {
+                    metrics.outboundDropped();
+                    return false;
+                }
+                return true;
+            default:
+                evict(pending);
+                return false;
+        }
+    }
+
+    /**
+     * Drops everything queued for a slow client, queues the reason why it is disconnected
+     * and closes the connection once the notice is written, or after
+     * {@link ServerConfig#OUTBOUND_EVICT_GRACE} if the client does not read it either.
+     */
+    private void evict(long pending) {
+        if (!evicted.compareAndSet(false, true)) {
+            return;
+        }
+        metrics.slowConsumerEvicted();
+        System.out.println("SERVER: " + getName() + " is disconnected for reading too slowly, " + pending + " bytes queued");
+        outbound.clear();
+        if (cipher != null) {
+            outbound.add(encrypt(SharedFunctions.ROSSO + "SERVER: YOU ARE DISCONNECTED FOR READING TOO SLOWLY" + SharedFunctions.RESET));
+        }
+        outbound.add(OutboundQueue.CLOSE);
+        onQueued();
+        if (timers != null) {
+            timers.schedule(this::close, ServerConfig.OUTBOUND_EVICT_GRACE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Replaces the pending timeout of the connection.
+     *
+     * @param task the task to run when the new timeout expires, or null to only cancel
+     * @param millis the delay of the new timeout, 0 for none
+     */
+    private void rearm(Runnable task, long millis) {
+        HashedTimingWheel.Timeout previous = timeout;
+        if (previous != null) {
+            previous.cancel();
+        }
+        timeout = task == null || millis <= 0 || timers == null || state == State.DISCONNECTED
+                ? null : timers.schedule(task, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes a connection which did not get through the handshake or the login in time.
+     */
+    private void onHandshakeTimeout() {
+        if (state != State.LISTENING && state != State.DISCONNECTED) {
+            metrics.handshakeTimeout();
+            System.out.println("SERVER: a client did not log in in time");
+            close();
+        }
+    }
+
+    /**
+     * Sends a heartbeat to a client which has been quiet for a heartbeat interval, and
+     * closes the connection of a client which has been silent for too long.
+     */
+    private void checkHeartbeat() {
+        if (state == State.DISCONNECTED) {
+            return;
+        }
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRead);
+        if (idle >= ServerConfig.IDLE_TIMEOUT) {
+            metrics.idleTimeout();
+            System.out.println("SERVER: " + getName() + " did not answer for " + idle + " ms");
+            close();
+            return;
+        }
+        if (idle >= ServerConfig.HEARTBEAT_INTERVAL) {
+            if (binaryFrames) {
+                sendFrame(Frame.encode(Frame.PING, new byte[0]));
+            } else {
+                send(Handshake.PING);
+            }
+        }
+        rearm(this::checkHeartbeat, ServerConfig.HEARTBEAT_INTERVAL);
+    }
+
+    private String getName() {
+        return username != null ? username : "a client";
+    }
+
+    /**
+     * Encrypts messages like {@link #sendEncrypeted(String)} but queues them as a single
+     * frame, so that the transport writes and flushes them at once. The frame is never
+     * dropped for a slow client: the messages are only sent once.
+     *
+     * @param messages the messages to send, in order
+     */
+    private void sendEncryptedBatch(List<String> messages) {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (String message : messages) {
+            byte[] bytes = encrypt(message);
+            batch.write(bytes, 0, bytes.length);
+        }
+        enqueue(batch.toByteArray(), messages.size(), false, false);
+    }
+
+    /**
+     * Sends one page of the users online, here and on the other nodes, taken from the
+     * latest presence snapshot and encrypted as a single message.
+     *
+     * @param prefix the prefix of the listed usernames, or null for all users
+     * @param page the requested page, from 1, or null for the first one
+     */
+    private void sendClientList(String prefix, String page) {
+        List<String> lines = presence.snapshot().page(prefix == null ? "" : prefix,
+                page == null ? 1 : Integer.parseInt(page), ServerConfig.CLIENTS_PAGE);
+        sendEncryptedLines(lines);
+    }
+
+    /**
+     * Sends lines as one encrypted message. Pure RSA sessions can only encrypt messages
+     * shorter than the modulus of the client, so there the lines are packed into as few
+     * messages as fit.
+     *
+     * @param lines the lines to send
+     */
+    private void sendEncryptedLines(List<String> lines) {
+        if (protocolVersion != Handshake.LEGACY_VERSION) {
+            sendEncrypeted(String.join("\n", lines));
+            return;
+        }
+        int limit = clientKey.getN().bitLength() / 8 - 1;
+        StringBuilder message = new StringBuilder();
+        int bytes = 0;
+        for (String line : lines) {
+            int length = line.getBytes(StandardCharsets.UTF_8).length;
+            if (message.length() > 0 && bytes + 1 + length > limit) {
+                sendEncrypeted(message.toString());
+                message.setLength(0);
+                bytes = 0;
+            }
+            if (message.length() > 0) {
+                message.append('\n');
+                bytes++;
+            }
+            message.append(line);
+            bytes += length;
+        }
+        sendEncrypeted(message.toString());
+    }
+
+    /**
+     * Sends the last broadcast messages to the client, oldest first, each prefixed with
+     * the time it was sent. They are read off the thread of the connection, and are not
+     * dropped for a slow client, which would leave holes in the replay.
+     *
+     * @param count the requested number of messages, or null for the default
+     */
+    private void sendHistory(String count) {
+        if (history == null) {
+            sendEncrypeted(SharedFunctions.GIALLO + "HISTORY IS DISABLED" + SharedFunctions.RESET);
+            return;
+        }
+        int n = count == null ? DEFAULT_HISTORY : Math.min(Integer.parseInt(count), ServerConfig.HISTORY_MAX);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        sendEncryptedKept(SharedFunctions.GIALLO + "--- HISTORY ---" + SharedFunctions.RESET);
+        history.replay(n, entry -> {
+            if (state == State.DISCONNECTED) {
+                return;
+            }
+            if (entry == null) {
+                sendEncryptedKept(SharedFunctions.GIALLO + "--- END OF HISTORY ---" + SharedFunctions.RESET);
+            } else {
+                sendEncryptedKept("[" + format.format(new Date(entry.getTime())) + "] " + entry.getText());
+            }
+        });
     }
 
     /**
@@ -189,13 +882,71 @@ public class ClientConnection {
     private void sendPrivateMessage(Matcher privateMessageMatcher) {
         String to = privateMessageMatcher.group(1);
         String messageText = privateMessageMatcher.group(2);
-        if (clients.keySet().contains(to)) {
-            clients.get(to).sendEncrypeted(SharedFunctions.CIANO + "PRIVATE " + SharedFunctions.MAGENTA +username + ": " + SharedFunctions.RESET + messageText);
+        ClientConnection recipient = clients.get(to);
+        String message = SharedFunctions.CIANO + "PRIVATE " + SharedFunctions.MAGENTA + username + ": " + SharedFunctions.RESET + messageText;
+        if (recipient != null) {
+            recipient.sendEncrypeted(message);
+        } else if (cluster != null && cluster.sendPrivate(to, message)) {
+            // delivered by the node of the recipient
+        } else if (mailboxes != null && authenticator.userIsRegistered(to)) {
+            mailboxes.execute(() -> storeOffline(to, message));
         } else {
             sendEncrypeted(SharedFunctions.ROSSO + "SERVER: WRONG NICKNAME" + SharedFunctions.RESET);
         }
     }
 
+    /**
+     * Stores a private message in the mailbox of an offline user and tells the sender.
+     * Runs on the mailbox thread. If the recipient logged in meanwhile, after its mailbox
+     * was delivered, it is delivered again.
+     *
+     * @param to the recipient
+     * @param message the private message as it will be delivered
+     */
+    private void storeOffline(String to, String message) {
+        try {
+            if (mailboxes.store(to, message)) {
+                sendEncrypeted(SharedFunctions.GIALLO + "SERVER: " + to + " IS OFFLINE, THE MESSAGE WILL BE DELIVERED ON LOGIN" + SharedFunctions.RESET);
+                ClientConnection recipient = clients.get(to);
+                if (recipient != null) {
+                    recipient.deliverMailbox();
+                }
+            } else {
+                sendEncrypeted(SharedFunctions.ROSSO + "SERVER: THE MAILBOX OF " + to + " IS FULL" + SharedFunctions.RESET);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            sendEncrypeted(SharedFunctions.ROSSO + "SERVER: THE MESSAGE TO " + to + " COULD NOT BE STORED" + SharedFunctions.RESET);
+        }
+    }
+
+    /**
+     * Sends the messages received while the user was offline, in one batch, and empties
+     * the mailbox of the user.
+     */
+    private void deliverMailbox() {
+        if (mailboxes == null || state != State.LISTENING) {
+            return;
+        }
+        List<MessageHistory.Entry> mail;
+        try {
+            mail = mailboxes.take(username);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (mail.isEmpty()) {
+            return;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        List<String> messages = new ArrayList<>(mail.size() + 1);
+        messages.add(SharedFunctions.GIALLO + mail.size() + " MESSAGE(S) RECEIVED WHILE OFFLINE" + SharedFunctions.RESET);
+        for (MessageHistory.Entry entry : mail) {
+            messages.add("[" + format.format(new Date(entry.getTime())) + "] " + entry.getText());
+        }
+        sendEncryptedBatch(messages);
+    }
+
     /**
      * Sends the encryption keys to the client.
      * The keys are sent as two separate strings: the exponent and the modulus.
@@ -206,15 +957,14 @@ public class ClientConnection {
     }
 
     /**
-     * Creates an RSA encryptor using the provided public key parameters.
+     * Creates an RSA encryptor using the public key parameters received from the client.
      *
+     * @param e the public exponent of the client
+     * @param n the modulus of the client
      * @return an RSA object initialized with the public key parameters.
-     * @throws IOException if an I/O error occurs while reading the key parameters.
      */
-    private RSA makeEncryptor() throws IOException {
-        BigInteger e = new BigInteger(socketReader.readLine());
-        BigInteger n = new BigInteger(socketReader.readLine());
+    private RSA makeEncryptor(BigInteger e, BigInteger n) {
         return new RSA(e, n);
     }
 
-}
\ No newline at end of file
+}
@@ -1,46 +1,41 @@
 package com.github.yagarea.chat.server;
 
-import com.github.yagarea.chat.shared.security.RSA;
-
 import java.io.IOException;
 import java.net.Socket;
-import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A Runnable that handles the connection of a new client to the server. It
- * initializes a new {@link ClientConnection} object for the client, adds it to
- * the list of active clients, and starts listening for incoming messages from
- * the client.
+ * initializes a new {@link SocketClientConnection} object for the client, which
+ * joins the list of active clients once logged in, and starts listening for
+ * incoming messages from the client.
  */
 public class ClientConnectionRunnable implements Runnable {
 
 
     private final Socket clientSocket;
-    private final Map<String, ClientConnection> clients;
-    private final RSA decryptor;
-    private final Authenticator auth;
+    private final ServerContext context;
+    private final ThreadFactory writerThreads;
 
     /**
      * Constructs a {@link ClientConnectionRunnable} with the given client socket,
-     * active clients map, RSA decryptor, and authenticator.
+     * server context and factory of writer threads.
      *
      * @param clientSocket the socket representing the client's connection
-     * @param clients the map of active clients
-     * @param decryptor the RSA decryptor used for message decryption
-     * @param auth the authenticator used to validate the client
+     * @param context the clients, keys and services of the server
+     * @param writerThreads the factory of the thread writing to the client
      */
-    public ClientConnectionRunnable(Socket clientSocket, Map<String, ClientConnection> clients, RSA decryptor, Authenticator auth) {
+    public ClientConnectionRunnable(Socket clientSocket, ServerContext context, ThreadFactory writerThreads) {
 
         this.clientSocket = clientSocket;
-        this.clients = clients;
-        this.decryptor = decryptor;
-        this.auth = auth;
+        this.context = context;
+        this.writerThreads = writerThreads;
     }
 
     /**
      * This method is executed when the {@link Runnable} is started. It creates a
-     * new {@link ClientConnection} for the client, adds the connection to the list
-     * of active clients, and starts the client's listening process for incoming messages.
+     * new {@link SocketClientConnection} for the client and starts the client's
+     * handshake and listening process for incoming messages.
      * 
      * If an {@link IOException} occurs during client initialization or connection,
      * the exception is printed to the console.
@@ -48,8 +43,7 @@ public class ClientConnectionRunnable implements Runnable {
     @Override
     public void run() {
         try {
-            ClientConnection newClient = new ClientConnection(clientSocket, clients, decryptor, auth);
-            clients.put(newClient.username, newClient);
+            SocketClientConnection newClient = new SocketClientConnection(clientSocket, context, writerThreads);
             newClient.startListenig();
         } catch (IOException e) {
             e.printStackTrace();
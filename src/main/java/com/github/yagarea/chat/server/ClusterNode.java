@@ -0,0 +1,632 @@
+package com.github.yagarea.chat.server;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Joins this server to a cluster of servers, so that users connected to different
+ * nodes can talk to each other: broadcasts reach the members of a room on every node,
+ * private messages go to the node hosting their recipient, and every node knows who
+ * is online, and in which room, on the others.
+ * <p>
+ * Every node listens on {@link ServerConfig#CLUSTER_PORT} and dials the nodes listed in
+ * {@link ServerConfig#CLUSTER_PEERS}, again and again while they are unreachable. Links
+ * are {@link PeerLink}s carrying one command per line:
+ * <ul>
+ *     <li>{@code HELLO node nonce} - the first line on both ends, naming the node</li>
+ *     <li>{@code PROOF mac} - the second line, proving the node knows the secret</li>
+ *     <li>{@code SYNC} - forget the users of the sending node, followed by their list</li>
+ *     <li>{@code JOIN user room} - a user is online on the sending node, in a room</li>
+ *     <li>{@code LEAVE user} - a user left the sending node</li>
+ *     <li>{@code BCAST room text} - deliver a broadcast to the members of a room</li>
+ *     <li>{@code PRIV user text} - deliver a private message to a user</li>
+ *     <li>{@code WHO user query} - ask whether a user is registered on the other node</li>
+ *     <li>{@code KNOWN query yes|no} - the answer to a {@code WHO}</li>
+ * </ul>
+ * Texts are Base64 encoded, so that no message can inject a command. The secret never
+ * travels: each node sends a random nonce, and proves it knows the secret with an HMAC
+ * of its name, the name of the other node and both nonces. The node which dialed proves
+ * first; the node which accepted only answers with its own proof once it has checked
+ * that one, so connecting to the cluster port teaches nothing about the secret. The
+ * links are not encrypted afterwards: the cluster port belongs on a trusted network.
+ * A broadcast is only relayed to the nodes having members in its room. If two nodes
+ * dial each other, both links are kept, but each node only sends on the first one, so
+ * nothing is delivered twice.
+ * <p>
+ * Credentials, mailboxes and the history stay local to every node, but usernames are
+ * unique across the cluster: before registering a new user, a node asks every linked
+ * node with {@code WHO}, and refuses the name if one of them knows it or does not answer
+ * within {@link #QUERY_MILLIS}. Users therefore log in on the node where they registered.
+ * A node which is down is not asked, so names are only unique among the nodes that were
+ * linked at registration time.
+ */
+public class ClusterNode {
+    private static final Base64.Encoder ENCODER = Base64.getEncoder();
+    private static final Base64.Decoder DECODER = Base64.getDecoder();
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int NONCE_LENGTH = 32;
+    private static final int HANDSHAKE_MILLIS = 10000;
+    /** The longest HELLO or PROOF line accepted from a node which is not trusted yet. */
+    private static final int HANDSHAKE_LINE = 1024;
+    /** How long a registration waits for the other nodes to say whether they know the name. */
+    static final long QUERY_MILLIS = 2000;
+
+    private final String name;
+    private final int port;
+    private final List<String> peers;
+    private final SecretKeySpec secret;
+    private final SecureRandom random = new SecureRandom();
+    private final long retryMillis;
+    private final Map<String, ClientConnection> clients;
+    private final Authenticator authenticator;
+    private final Rooms rooms;
+    private final Presence presence;
+    private final Map<String, List<PeerLink>> links = new ConcurrentHashMap<>();
+    private final Map<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+    private final Map<String, Multiset<String>> roomNodes = new ConcurrentHashMap<>();
+    private final Set<PeerLink> openLinks = ConcurrentHashMap.newKeySet();
+    private final List<Thread> dialers = new CopyOnWriteArrayList<>();
+    private final Map<Long, Query> queries = new ConcurrentHashMap<>();
+    private final AtomicLong queryIds = new AtomicLong();
+    private ServerSocket listener;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a node; nothing is opened until it is started.
+     *
+     * @param name the name of this node, by which the other nodes know it
+     * @param port the port on which other nodes connect, 0 for any free port
+     * @param peers the {@code host:port} addresses of the nodes to dial
+     * @param secret the secret shared by the nodes of the cluster
+     * @param retryMillis the delay before an unreachable node is dialed again
+     * @param clients the clients connected to this node, by username
+     * @param authenticator the users registered on this node
+     * @param rooms the rooms of this node
+     * @param presence the users online, to which the users of the other nodes are added
+     * @throws IllegalArgumentException if the secret is empty
+     */
+    public ClusterNode(String name, int port, List<String> peers, String secret, long retryMillis,
+                       Map<String, ClientConnection> clients, Authenticator authenticator, Rooms rooms, Presence presence) {
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs a secret");
+        }
+        this.name = name;
+        this.port = port;
+        this.peers = peers;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        this.retryMillis = retryMillis;
+        this.clients = clients;
+        this.authenticator = authenticator;
+        this.rooms = rooms;
+        this.presence = presence;
+    }
+
+    /**
+     * Starts accepting links from other nodes and dialing the peers.
+     *
+     * @throws IOException if the cluster port cannot be opened
+     */
+    public void start() throws IOException {
+        listener = new ServerSocket(port);
+        daemon("cluster-listener", () -> {
+            while (!listener.isClosed()) {
+                try {
+                    Socket socket = listener.accept();
+                    daemon("cluster-link-" + socket.getRemoteSocketAddress(), () -> serve(socket, false));
+                } catch (IOException e) {
+                    if (!listener.isClosed()) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+        for (String peer : peers) {
+            if (!peer.equals(name)) {
+                dialers.add(daemon("cluster-dialer-" + peer, () -> dial(peer)));
+            }
+        }
+    }
+
+    /**
+     * Leaves the cluster: stops listening and dialing, and closes every link.
+     */
+    public void close() {
+        closed = true;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Thread dialer : dialers) {
+            dialer.interrupt();
+        }
+        for (PeerLink link : openLinks) {
+            link.close();
+        }
+    }
+
+    /**
+     * Returns the port on which other nodes connect.
+     *
+     * @return the port of the listener
+     */
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    /**
+     * Tells the other nodes that a user is online here, in a room; also when the user
+     * moves to another room.
+     *
+     * @param username the user
+     * @param room the room of the user
+     */
+    public synchronized void userJoined(String username, String room) {
+        sendToAll("JOIN " + username + " " + room);
+    }
+
+    /**
+     * Tells the other nodes that a user is no longer online here.
+     *
+     * @param username the user
+     */
+    public synchronized void userLeft(String username) {
+        sendToAll("LEAVE " + username);
+    }
+
+    /**
+     * Relays a broadcast to the nodes having members in a room.
+     *
+     * @param room the name of the room
+     * @param message the plain text message
+     */
+    public void broadcast(String room, String message) {
+        Multiset<String> nodes = roomNodes.get(room);
+        if (nodes == null) {
+            return;
+        }
+        String line = "BCAST " + room + " " + encode(message);
+        for (String node : nodes.elementSet()) {
+            PeerLink link = primary(node);
+            if (link != null) {
+                link.send(line);
+            }
+        }
+    }
+
+    /**
+     * Relays a private message to the node hosting its recipient.
+     *
+     * @param username the recipient
+     * @param message the plain text message
+     * @return false if the recipient is not online on another node
+     */
+    public boolean sendPrivate(String username, String message) {
+        RemoteUser user = remoteUsers.get(username);
+        PeerLink link = user == null ? null : primary(user.node);
+        if (link == null) {
+            return false;
+        }
+        link.send("PRIV " + username + " " + encode(message));
+        return true;
+    }
+
+    /**
+     * Asks every linked node whether a user is registered there, before the user is
+     * registered here. Blocks for up to {@link #QUERY_MILLIS}.
+     *
+     * @param username the user
+     * @return true if another node knows the user, or did not answer in time
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean isRegisteredElsewhere(String username) throws InterruptedException {
+        List<PeerLink> targets = new ArrayList<>();
+        for (List<PeerLink> nodeLinks : links.values()) {
+            PeerLink link = first(nodeLinks);
+            if (link != null) {
+                targets.add(link);
+            }
+        }
+        if (targets.isEmpty()) {
+            return false;
+        }
+        long id = queryIds.incrementAndGet();
+        Query query = new Query(targets.size());
+        queries.put(id, query);
+        try {
+            for (PeerLink link : targets) {
+                link.send("WHO " + username + " " + id);
+            }
+            boolean answered = query.answers.await(QUERY_MILLIS, TimeUnit.MILLISECONDS);
+            return query.known || !answered;
+        } finally {
+            queries.remove(id);
+        }
+    }
+
+    /**
+     * Tells whether this node is linked to another one.
+     *
+     * @param node the name of the other node
+     * @return true if at least one link to the node is up
+     */
+    public boolean isLinked(String node) {
+        return links.containsKey(node);
+    }
+
+    /**
+     * Tells whether a user is online on another node.
+     *
+     * @param username the user
+     * @return true if another node hosts the user
+     */
+    public boolean isOnline(String username) {
+        return remoteUsers.containsKey(username);
+    }
+
+    /**
+     * Returns the users online on the other nodes.
+     *
+     * @return the usernames
+     */
+    public Collection<String> getRemoteUsers() {
+        return Collections.unmodifiableSet(remoteUsers.keySet());
+    }
+
+    /**
+     * Describes the links of this node, for the server console.
+     *
+     * @return one line per linked node, then the number of remote users
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder("node " + name + "\n");
+        for (Map.Entry<String, List<PeerLink>> node : links.entrySet()) {
+            long lines = 0;
+            long writes = 0;
+            for (PeerLink link : node.getValue()) {
+                lines += link.getLines();
+                writes += link.getWrites();
+            }
+            report.append(String.format("  %s: %d link(s), %d lines sent in %d writes%n",
+                    node.getKey(), node.getValue().size(), lines, writes));
+        }
+        report.append("remote users: ").append(remoteUsers.size());
+        return report.toString();
+    }
+
+    /**
+     * Dials a peer, serves the link until it breaks and dials again, until the node is
+     * closed.
+     */
+    private void dial(String peer) {
+        int colon = peer.lastIndexOf(':');
+        String host = peer.substring(0, colon);
+        int peerPort = Integer.parseInt(peer.substring(colon + 1));
+        while (!closed) {
+            if (!links.containsKey(peer)) {
+                try {
+                    serve(new Socket(host, peerPort), true);
+                } catch (IOException e) {
+                    // unreachable, tried again below
+                }
+            }
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Exchanges the names of the nodes, checks that the other node knows the secret and
+     * handles its commands until the link breaks.
+     *
+     * @param dialed true if this node dialed the other one, which then proves first
+     */
+    private void serve(Socket socket, boolean dialed) {
+        PeerLink link;
+        try {
+            link = new PeerLink(socket);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        openLinks.add(link);
+        if (closed) {
+            link.close();
+        }
+        String node = null;
+        try {
+            socket.setSoTimeout(HANDSHAKE_MILLIS);
+            String nonce = newNonce();
+            link.send("HELLO " + name + " " + nonce);
+            String[] hello = String.valueOf(link.readLine(HANDSHAKE_LINE)).split(" ", 3);
+            if (hello.length < 3 || !hello[0].equals("HELLO") || hello[1].equals(name)) {
+                System.err.println("CLUSTER: refused a link from " + socket.getRemoteSocketAddress());
+                return;
+            }
+            if (dialed) {
+                link.send("PROOF " + proof(name, hello[1], hello[2], nonce));
+            }
+            String expected = "PROOF " + proof(hello[1], name, nonce, hello[2]);
+            if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8),
+                    String.valueOf(link.readLine(HANDSHAKE_LINE)).getBytes(StandardCharsets.UTF_8))) {
+                System.err.println("CLUSTER: refused a link from " + socket.getRemoteSocketAddress());
+                return;
+            }
+            if (!dialed) {
+                link.send("PROOF " + proof(name, hello[1], hello[2], nonce));
+            }
+            socket.setSoTimeout(0);
+            node = hello[1];
+            register(node, link);
+            String line;
+            while ((line = link.readLine()) != null) {
+                handle(node, line);
+            }
+        } catch (IOException e) {
+            // the link broke
+        } catch (RuntimeException e) {
+            System.err.println("CLUSTER: malformed command from " + socket.getRemoteSocketAddress() + ": " + e);
+        } finally {
+            link.close();
+            openLinks.remove(link);
+            if (node != null) {
+                unregister(node, link);
+            }
+        }
+    }
+
+    private String newNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return ENCODER.encodeToString(nonce);
+    }
+
+    /**
+     * Computes the proof that a node knows the secret, bound to both nodes and both
+     * nonces, so that it can neither be replayed on another link nor reflected back.
+     *
+     * @param prover the name of the node proving
+     * @param verifier the name of the node checking the proof
+     * @param verifierNonce the nonce sent by the verifier
+     * @param proverNonce the nonce sent by the prover
+     * @return the Base64 encoded HMAC
+     */
+    private String proof(String prover, String verifier, String verifierNonce, String proverNonce) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            String message = prover + " " + verifier + " " + verifierNonce + " " + proverNonce;
+            return ENCODER.encodeToString(mac.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Adds a link to a node; if it is the first one, it is the one this node sends on
+     * from now on, so the other node is told who is online here.
+     */
+    private synchronized void register(String node, PeerLink link) {
+        List<PeerLink> nodeLinks = links.computeIfAbsent(node, key -> new CopyOnWriteArrayList<>());
+        nodeLinks.add(link);
+        if (nodeLinks.get(0) == link) {
+            System.out.println("CLUSTER: linked to " + node);
+            sendPresence(link);
+        }
+    }
+
+    /**
+     * Removes a link to a node, forgetting the users of the node if it was the last one.
+     */
+    private synchronized void unregister(String node, PeerLink link) {
+        List<PeerLink> nodeLinks = links.get(node);
+        if (nodeLinks == null) {
+            return;
+        }
+        boolean wasPrimary = !nodeLinks.isEmpty() && nodeLinks.get(0) == link;
+        nodeLinks.remove(link);
+        if (nodeLinks.isEmpty()) {
+            links.remove(node);
+            forget(node);
+            System.out.println("CLUSTER: lost " + node);
+        } else if (wasPrimary) {
+            sendPresence(nodeLinks.get(0));
+        }
+    }
+
+    /**
+     * Sends the list of the users online here, replacing what the other node knew.
+     */
+    private void sendPresence(PeerLink link) {
+        link.send("SYNC");
+        for (ClientConnection client : clients.values()) {
+            String room = client.getRoomName();
+            if (client.username != null && room != null) {
+                link.send("JOIN " + client.username + " " + room);
+            }
+        }
+    }
+
+    private void sendToAll(String line) {
+        for (List<PeerLink> nodeLinks : links.values()) {
+            PeerLink link = first(nodeLinks);
+            if (link != null) {
+                link.send(line);
+            }
+        }
+    }
+
+    private PeerLink primary(String node) {
+        List<PeerLink> nodeLinks = links.get(node);
+        return nodeLinks == null ? null : first(nodeLinks);
+    }
+
+    private static PeerLink first(List<PeerLink> nodeLinks) {
+        try {
+            return nodeLinks.get(0);
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Handles one command of another node.
+     */
+    private void handle(String node, String line) {
+        String[] command = line.split(" ", 3);
+        switch (command[0]) {
+            case "SYNC":
+                forget(node);
+                break;
+            case "JOIN":
+                joined(node, command[1], command[2]);
+                break;
+            case "LEAVE":
+                left(node, command[1]);
+                break;
+            case "BCAST":
+                Rooms.Room room = rooms.get(command[1]);
+                if (room != null) {
+                    room.broadcast(null, decode(command[2]));
+                }
+                break;
+            case "WHO":
+                PeerLink asker = primary(node);
+                if (asker != null) {
+                    asker.send("KNOWN " + command[2] + " " + (authenticator.userIsRegistered(command[1]) ? "yes" : "no"));
+                }
+                break;
+            case "KNOWN":
+                Query query = queries.get(Long.parseLong(command[1]));
+                if (query != null) {
+                    if (command[2].equals("yes")) {
+                        query.known = true;
+                    }
+                    query.answers.countDown();
+                }
+                break;
+            case "PRIV":
+                ClientConnection recipient = clients.get(command[1]);
+                if (recipient != null) {
+                    recipient.sendEncrypeted(decode(command[2]));
+                }
+                break;
+            default:
+                System.err.println("CLUSTER: unknown command from " + node + ": " + command[0]);
+        }
+    }
+
+    private void joined(String node, String username, String room) {
+        synchronized (remoteUsers) {
+            RemoteUser previous = remoteUsers.put(username, new RemoteUser(node, room));
+            if (previous != null) {
+                removeRoomNode(previous);
+            }
+            roomNodes.computeIfAbsent(room, key -> ConcurrentHashMultiset.create()).add(node);
+            presence.add(username);
+        }
+    }
+
+    private void left(String node, String username) {
+        synchronized (remoteUsers) {
+            RemoteUser user = remoteUsers.get(username);
+            if (user != null && user.node.equals(node)) {
+                remoteUsers.remove(username);
+                removeRoomNode(user);
+                presence.remove(username);
+            }
+        }
+    }
+
+    /**
+     * Forgets every user of a node.
+     */
+    private void forget(String node) {
+        synchronized (remoteUsers) {
+            List<String> gone = new ArrayList<>();
+            for (Map.Entry<String, RemoteUser> user : remoteUsers.entrySet()) {
+                if (user.getValue().node.equals(node)) {
+                    gone.add(user.getKey());
+                }
+            }
+            for (String username : gone) {
+                left(node, username);
+            }
+        }
+    }
+
+    private void removeRoomNode(RemoteUser user) {
+        Multiset<String> nodes = roomNodes.get(user.room);
+        if (nodes != null) {
+            nodes.remove(user.node);
+            if (nodes.isEmpty()) {
+                roomNodes.remove(user.room);
+            }
+        }
+    }
+
+    private static String encode(String text) {
+        return ENCODER.encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String text) {
+        return new String(DECODER.decode(text), StandardCharsets.UTF_8);
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * The answers to a {@code WHO} sent to every linked node.
+     */
+    private static class Query {
+        private final CountDownLatch answers;
+        private volatile boolean known;
+
+        Query(int nodes) {
+            this.answers = new CountDownLatch(nodes);
+        }
+    }
+
+    /**
+     * Where a user of another node is.
+     */
+    private static class RemoteUser {
+        private final String node;
+        private final String room;
+
+        RemoteUser(String node, String room) {
+            this.node = node;
+            this.room = room;
+        }
+    }
+}
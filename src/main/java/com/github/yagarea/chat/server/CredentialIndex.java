@@ -0,0 +1,346 @@
+package com.github.yagarea.chat.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A memory-mapped hash index of a {@link CredentialLog}, so that a server with millions
+ * of registered users starts without reading them all: users are looked up in the
+ * mapping when they log in, and only the records appended to the log since the index
+ * was built are kept on the heap, see {@link Authenticator}.
+ * <p>
+ * The index file starts with a header, followed by a table of open addressing slots,
+ * each the offset of an entry or 0, and by the entries themselves, each the username,
+ * salt and hash as UTF-8 strings prefixed with their length. The header records how
+ * many bytes of the log are covered, and a checksum of the last of them, which tells
+ * whether the log was rewritten since. The index is rebuilt, in two streaming passes
+ * whose heap use does not depend on the number of users, when it is missing, does not
+ * match the log, or covers less than seven eighths of it; the log is then rewritten
+ * with the latest record of every user, as a compaction would.
+ */
+public class CredentialIndex {
+    private static final long MAGIC = 0x4348415449445831L; // "CHATIDX1"
+    private static final int HEADER = 48;
+    private static final int CHECKSUM_BYTES = 4096;
+    private static final long MIN_STALE_BYTES = 1 << 20;
+    private static final Pattern RECORD = Pattern.compile("(\\w+):(\\d+):(.+)");
+
+    private final MappedByteBuffer mapping;
+    private final int mask;
+    private final long users;
+    private final long coveredSize;
+
+    private CredentialIndex(MappedByteBuffer mapping) throws IOException {
+        this.mapping = mapping;
+        if (mapping.capacity() < HEADER || mapping.getLong(0) != MAGIC) {
+            throw new IOException("Not a credential index");
+        }
+        int slots = mapping.getInt(8);
+        if (Integer.bitCount(slots) != 1 || HEADER + 8L * slots > mapping.capacity()) {
+            throw new IOException("Corrupted credential index");
+        }
+        this.mask = slots - 1;
+        this.users = mapping.getLong(16);
+        this.coveredSize = mapping.getLong(24);
+    }
+
+    /**
+     * Opens the index of a credential log, building it first if it is missing or stale.
+     *
+     * @param log the credential log, which must not be written to meanwhile
+     * @param indexFile the index file
+     * @return the index
+     * @throws IOException if the log or the index cannot be read or written
+     */
+    public static CredentialIndex openOrBuild(Path log, Path indexFile) throws IOException {
+        long logSize = Files.exists(log) ? Files.size(log) : 0;
+        if (Files.exists(indexFile)) {
+            try {
+                CredentialIndex index = open(indexFile);
+                long stale = logSize - index.coveredSize;
+                if (stale >= 0 && stale < Math.max(MIN_STALE_BYTES, logSize / 8) && index.matches(log)) {
+                    return index;
+                }
+            } catch (IOException e) {
+                System.err.println("Rebuilding " + indexFile + ": " + e.getMessage());
+            }
+        }
+        build(log, indexFile);
+        compactLog(log, indexFile);
+        return open(indexFile);
+    }
+
+    private static CredentialIndex open(Path indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(indexFile + " is too large to map");
+            }
+            return new CredentialIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Tells whether the log still starts with the bytes the index was built from.
+     */
+    private boolean matches(Path log) throws IOException {
+        return checksum(log, coveredSize) == mapping.getLong(32);
+    }
+
+    /**
+     * Looks a user up.
+     *
+     * @param username the username
+     * @return the salted password hash of the user, or null if the index does not know the user
+     */
+    public PasswordHolder get(String username) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entries = mapping.duplicate();
+        for (int slot = hash(name) & mask; ; slot = (slot + 1) & mask) {
+            long offset = mapping.getLong(HEADER + 8 * slot);
+            if (offset == 0) {
+                return null;
+            }
+            entries.position((int) offset);
+            if (nameEquals(entries, name)) {
+                String salt = readString(entries);
+                String hash = readString(entries);
+                return new PasswordHolder(salt, hash);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of users in the index.
+     *
+     * @return the number of users
+     */
+    public long getUsers() {
+        return users;
+    }
+
+    /**
+     * Returns the number of bytes at the start of the log which the index covers;
+     * the records after them are not in the index.
+     *
+     * @return the covered size of the log
+     */
+    public long getCoveredSize() {
+        return coveredSize;
+    }
+
+    /**
+     * Builds the index of a log: the first pass counts the records and the size of
+     * their entries, the second one writes every entry and points its slot to it, so a
+     * later record of a user replaces the earlier one.
+     */
+    private static void build(Path log, Path indexFile) throws IOException {
+        long records = 0;
+        long entryBytes = 0;
+        long logSize = 0;
+        if (Files.exists(log)) {
+            logSize = Files.size(log);
+            try (BufferedReader reader = reader(log)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Matcher record = RECORD.matcher(line);
+                    if (record.matches()) {
+                        records++;
+                        entryBytes += 12 + utf8Length(record.group(1)) + utf8Length(record.group(2)) + utf8Length(record.group(3));
+                    }
+                }
+            }
+        }
+        int slots = Integer.highestOneBit((int) Math.min(1 << 30, Math.max(16, records * 2)) - 1) << 1;
+        long size = HEADER + 8L * slots + entryBytes;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Too many users to index " + log);
+        }
+
+        Path temporary = Files.createTempFile(indexFile.toAbsolutePath().getParent(), indexFile.getFileName().toString(), ".tmp");
+        try {
+            long users = 0;
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                index.position(HEADER + 8 * slots);
+                if (records > 0) {
+                    try (BufferedReader reader = reader(log)) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            Matcher record = RECORD.matcher(line);
+                            if (record.matches() && insert(index, slots - 1, record)) {
+                                users++;
+                            }
+                        }
+                    }
+                }
+                index.putLong(0, MAGIC);
+                index.putInt(8, slots);
+                index.putLong(16, users);
+                index.putLong(24, logSize);
+                index.putLong(32, checksum(log, logSize));
+                index.force();
+            }
+            move(temporary, indexFile);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Appends an entry at the position of the index and points the slot of its user to it.
+     *
+     * @return true if the user was not in the index yet
+     */
+    private static boolean insert(MappedByteBuffer index, int mask, Matcher record) {
+        byte[] name = record.group(1).getBytes(StandardCharsets.UTF_8);
+        int offset = index.position();
+        writeString(index, name);
+        writeString(index, record.group(2).getBytes(StandardCharsets.UTF_8));
+        writeString(index, record.group(3).getBytes(StandardCharsets.UTF_8));
+        ByteBuffer entries = index.duplicate();
+        for (int slot = hash(name) & mask; ; slot = (slot + 1) & mask) {
+            long existing = index.getLong(HEADER + 8 * slot);
+            if (existing != 0) {
+                entries.position((int) existing);
+            }
+            if (existing == 0 || nameEquals(entries, name)) {
+                index.putLong(HEADER + 8 * slot, offset);
+                return existing == 0;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with the latest record of every user, taken from the index, and
+     * points the index to the rewritten log. A crash in between leaves an index which
+     * does not match the log, so it is simply built again.
+     */
+    private static void compactLog(Path log, Path indexFile) throws IOException {
+        if (!Files.exists(log)) {
+            return;
+        }
+        CredentialIndex index = open(indexFile);
+        Path temporary = Files.createTempFile(log.toAbsolutePath().getParent(), log.getFileName().toString(), ".tmp");
+        try {
+            ByteBuffer entries = index.mapping.duplicate();
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (int slot = 0; slot <= index.mask; slot++) {
+                    long offset = index.mapping.getLong(HEADER + 8 * slot);
+                    if (offset != 0) {
+                        entries.position((int) offset);
+                        writer.write(readString(entries) + ":" + readString(entries) + ":" + readString(entries));
+                        writer.newLine();
+                    }
+                }
+            }
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            move(temporary, log);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        long logSize = Files.size(log);
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer covered = ByteBuffer.allocate(16);
+            covered.putLong(logSize).putLong(checksum(log, logSize)).flip();
+            while (covered.hasRemaining()) {
+                channel.write(covered, 24 + covered.position());
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Computes a checksum of the last bytes before the end of the covered part of the log.
+     */
+    private static long checksum(Path log, long coveredSize) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update((int) coveredSize);
+        if (coveredSize > 0) {
+            if (!Files.exists(log) || Files.size(log) < coveredSize) {
+                return -1;
+            }
+            int length = (int) Math.min(CHECKSUM_BYTES, coveredSize);
+            ByteBuffer tail = ByteBuffer.allocate(length);
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+                while (tail.hasRemaining() && channel.read(tail, coveredSize - length + tail.position()) >= 0) {
+                    // reads until the buffer is full
+                }
+            }
+            crc.update(tail.array(), 0, tail.position());
+        }
+        return crc.getValue();
+    }
+
+    private static BufferedReader reader(Path log) throws IOException {
+        InputStream input = Files.newInputStream(log);
+        return new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Hashes a username with FNV-1a, spreading the high bits over the low ones used for the slots.
+     */
+    private static int hash(byte[] name) {
+        int hash = 0x811c9dc5;
+        for (byte b : name) {
+            hash = (hash ^ (b & 0xff)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Compares the name of the entry at the position of the buffer, leaving the buffer
+     * after the name.
+     */
+    private static boolean nameEquals(ByteBuffer entry, byte[] name) {
+        int length = entry.getInt();
+        if (length != name.length) {
+            return false;
+        }
+        for (byte b : name) {
+            if (entry.get() != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int utf8Length(String string) {
+        return string.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
@@ -0,0 +1,379 @@
+package com.github.yagarea.chat.server;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The credential file of an {@link Authenticator}, kept as an append-only log of
+ * {@code username:salt:hash} records in which the last record of a user wins.
+ * <p>
+ * Registering a user and changing a password both append one record through a single
+ * open channel, so they cost the same whatever the number of users. The file keeps the
+ * format of the original credential file, which is a log without obsolete records.
+ * <p>
+ * Records are written by one committer thread, so lines of concurrent callers never
+ * interleave. It takes every record queued while the previous batch was being written,
+ * writes them at once and, with {@link ServerConfig#AUTH_FSYNC}, forces them to disk
+ * with a single fsync; {@link #append(String, PasswordHolder, boolean)} returns only
+ * once the batch holding its record is durable.
+ * <p>
+ * Once at least {@link ServerConfig#AUTH_COMPACT_THRESHOLD} records are obsolete and
+ * they outnumber the live ones, a background thread rewrites the log with only the
+ * latest record of every user: it copies everything written so far to a temporary file
+ * without holding the lock, then, under the lock, appends the records written meanwhile
+ * and moves the temporary file over the log.
+ */
+public class CredentialLog implements Closeable {
+    private static final Pattern RECORD = Pattern.compile("(\\w+):(\\d+):(.+)");
+    private static final int MAX_BATCH = 1024;
+    private static final PendingRecord CLOSE = new PendingRecord(new byte[0], false);
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "credential-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path file;
+    private final int compactThreshold;
+    private final boolean fsync;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final BlockingQueue<PendingRecord> pending = new LinkedBlockingQueue<>();
+    private Thread committer;
+    private boolean closed;
+    private FileChannel channel;
+    private long records;
+    private long obsolete;
+
+    /**
+     * Constructs the log of a credential file; nothing is opened until the log is read
+     * or appended to.
+     *
+     * @param file the credential file
+     * @param compactThreshold the number of obsolete records from which the log may be compacted
+     * @param fsync whether every batch of records is forced to disk before it is acknowledged
+     */
+    public CredentialLog(Path file, int compactThreshold, boolean fsync) {
+        this.file = file;
+        this.compactThreshold = compactThreshold;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Reads the latest record of every user. Malformed lines, e.g. a record torn by a
+     * crash, are skipped.
+     *
+     * @return the salted password hashes by username
+     * @throws IOException if the file cannot be read
+     */
+    public Map<String, PasswordHolder> read() throws IOException {
+        return readFrom(0);
+    }
+
+    /**
+     * Reads the latest record of every user written after a given offset, e.g. the end
+     * of the part of the log covered by a {@link CredentialIndex}. Only those records
+     * count as records of the log, for the compaction.
+     *
+     * @param offset the offset in bytes of the first record to read
+     * @return the salted password hashes by username
+     * @throws IOException if the file cannot be read
+     */
+    public synchronized Map<String, PasswordHolder> readFrom(long offset) throws IOException {
+        Map<String, PasswordHolder> users = new LinkedHashMap<>();
+        records = 0;
+        if (Files.exists(file)) {
+            try (InputStream input = Files.newInputStream(file)) {
+                ByteStreams.skipFully(input, offset);
+                records = read(input, users);
+            }
+        }
+        obsolete = records - users.size();
+        return users;
+    }
+
+    /**
+     * Appends the record of a user and waits until it is written, and forced to disk if
+     * {@code fsync} is set, along with the other records of its batch.
+     *
+     * @param username the username
+     * @param password the salted password hash of the user
+     * @param replaces whether the user already had a record, which becomes obsolete
+     * @throws IOException if the record cannot be written or the log is closed
+     */
+    public void append(String username, PasswordHolder password, boolean replaces) throws IOException {
+        PendingRecord record = new PendingRecord((username + ":" + password.getSalt() + ":" + password.getHash() + "\n").getBytes(StandardCharsets.UTF_8), replaces);
+        synchronized (pending) {
+            if (closed) {
+                throw new IOException(file + " is closed");
+            }
+            if (committer == null) {
+                committer = new Thread(this::commitLoop, "credential-committer");
+                committer.setDaemon(true);
+                committer.start();
+            }
+            pending.add(record);
+        }
+        record.await();
+    }
+
+    /**
+     * Writes the queued records in batches until the log is closed.
+     */
+    private void commitLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            batch.clear();
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            pending.drainTo(batch, MAX_BATCH - 1);
+            int close = batch.indexOf(CLOSE);
+            if (close >= 0) {
+                // nothing is queued after CLOSE, see close()
+                batch.remove(close);
+                running = false;
+            }
+            IOException failure = null;
+            try {
+                commit(batch);
+            } catch (IOException e) {
+                failure = e;
+            }
+            for (PendingRecord record : batch) {
+                record.complete(failure);
+            }
+        }
+        synchronized (this) {
+            closeChannel();
+        }
+    }
+
+    /**
+     * Writes one batch of records with a single gathering write and a single fsync, and
+     * schedules a compaction if the log has become mostly obsolete.
+     */
+    private void commit(List<PendingRecord> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long bytes = 0;
+        int replaced = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            PendingRecord record = batch.get(i);
+            buffers[i] = ByteBuffer.wrap(record.bytes);
+            bytes += record.bytes.length;
+            if (record.replaces) {
+                replaced++;
+            }
+        }
+        boolean compact;
+        synchronized (this) {
+            FileChannel appender = appender();
+            while (bytes > 0) {
+                bytes -= appender.write(buffers);
+            }
+            if (fsync) {
+                appender.force(false);
+            }
+            records += buffers.length;
+            obsolete += replaced;
+            compact = obsolete >= compactThreshold && obsolete * 2 > records;
+        }
+        if (compact && compacting.compareAndSet(false, true)) {
+            COMPACTOR.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Rewrites the log with only the latest record of every user. Appending goes on
+     * while the records are copied and only waits for the final move.
+     *
+     * @throws IOException if the log cannot be rewritten, in which case it is left as it was
+     */
+    public void compact() throws IOException {
+        long end;
+        long obsoleteBefore;
+        synchronized (this) {
+            end = appender().size();
+            obsoleteBefore = obsolete;
+        }
+        Map<String, PasswordHolder> users = new LinkedHashMap<>();
+        try (InputStream input = ByteStreams.limit(Files.newInputStream(file), end)) {
+            read(input, users);
+        }
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, PasswordHolder> user : users.entrySet()) {
+                    writer.write(user.getKey() + ":" + user.getValue().getSalt() + ":" + user.getValue().getHash());
+                    writer.newLine();
+                }
+            }
+            synchronized (this) {
+                try (FileChannel tail = FileChannel.open(file, StandardOpenOption.READ);
+                     FileChannel compacted = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    long position = end;
+                    long size = tail.size();
+                    while (position < size) {
+                        position += tail.transferTo(position, size - position, compacted);
+                    }
+                    compacted.force(true);
+                }
+                try {
+                    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+                closeChannel();
+                records -= obsoleteBefore;
+                obsolete -= obsoleteBefore;
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Returns the number of records in the log, obsolete ones included.
+     *
+     * @return the number of records
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Returns the number of records replaced by a later record of the same user.
+     *
+     * @return the number of obsolete records
+     */
+    public synchronized long getObsolete() {
+        return obsolete;
+    }
+
+    /**
+     * Stops the committer once it has written the records queued so far and closes the
+     * file. Later appends fail.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (pending) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (committer != null) {
+                pending.add(CLOSE);
+                return;
+            }
+        }
+        synchronized (this) {
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    private FileChannel appender() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return channel;
+    }
+
+    private static long read(InputStream input, Map<String, PasswordHolder> users) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        long count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Matcher record = RECORD.matcher(line);
+            if (record.matches()) {
+                users.put(record.group(1), new PasswordHolder(record.group(2), record.group(3)));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A record waiting to be written, which its caller waits for.
+     */
+    private static class PendingRecord {
+        private final byte[] bytes;
+        private final boolean replaces;
+        private final CountDownLatch written = new CountDownLatch(1);
+        private volatile IOException failure;
+
+        PendingRecord(byte[] bytes, boolean replaces) {
+            this.bytes = bytes;
+            this.replaces = replaces;
+        }
+
+        void complete(IOException failure) {
+            this.failure = failure;
+            written.countDown();
+        }
+
+        void await() throws IOException {
+            try {
+                written.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing a credential record");
+            }
+            if (failure != null) {
+                throw new IOException("Cannot write a credential record", failure);
+            }
+        }
+    }
+}
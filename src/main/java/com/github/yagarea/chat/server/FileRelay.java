@@ -0,0 +1,158 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.Frame;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes file transfers between two logged in clients.
+ * <p>
+ * A transfer is opened by an {@code OFFER} control line and identified by the id chosen
+ * by the sender. Control lines ({@link Frame#TRANSFER}) are small and are re-encrypted for
+ * the other party, with the peer name rewritten to the name of the actual sender.
+ * Chunks ({@link Frame#CHUNK}) are encrypted with the key of the transfer, which the
+ * sender announces in the offer. The server never decrypts them: it looks up the route
+ * of the id and queues the very frame it has read to the recipient. Clients acknowledge
+ * chunks end to end, so the sender never has more than a small window of chunks in flight.
+ */
+public class FileRelay {
+    /**
+     * A recipient with more queued bytes than this is not reading; relaying more chunks
+     * to it would only pile them up in the heap of the server.
+     */
+    static final long MAX_QUEUED_BYTES = 8L * 1024 * 1024;
+
+    private final Map<Long, Route> routes = new ConcurrentHashMap<>();
+
+    /**
+     * The two ends of a transfer.
+     */
+    private static class Route {
+        private final ClientConnection sender;
+        private final ClientConnection recipient;
+        private final String name;
+        private volatile long relayedBytes;
+
+        private Route(ClientConnection sender, ClientConnection recipient, String name) {
+            this.sender = sender;
+            this.recipient = recipient;
+            this.name = name;
+        }
+
+        private ClientConnection other(ClientConnection end) {
+            return end == sender ? recipient : sender;
+        }
+    }
+
+    /**
+     * Routes a control line of a client to the other end of the transfer.
+     * The line has the form {@code <verb> <peer> <id> [arguments]}.
+     *
+     * @param from the client which sent the line
+     * @param clients the map of active clients
+     * @param control the decrypted control line
+     */
+    void onControl(ClientConnection from, Map<String, ClientConnection> clients, String control) {
+        String[] parts = control.split(" ", 4);
+        if (parts.length < 3) {
+            return;
+        }
+        String verb = parts[0];
+        String peer = parts[1];
+        long id;
+        try {
+            id = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        String arguments = parts.length > 3 ? " " + parts[3] : "";
+
+        if (verb.equals("OFFER")) {
+            ClientConnection recipient = clients.get(peer);
+            if (recipient == null || recipient == from || !recipient.isBinaryFrames()) {
+                from.sendTransferControl("CANCEL " + peer + " " + id + " unavailable");
+                return;
+            }
+            String[] offer = arguments.trim().split(" ", 3);
+            String name = offer.length == 3 ? offer[2] : "";
+            if (routes.putIfAbsent(id, new Route(from, recipient, name)) != null) {
+                from.sendTransferControl("CANCEL " + peer + " " + id + " busy");
+                return;
+            }
+            recipient.sendTransferControl("OFFER " + from.username + " " + id + arguments);
+            return;
+        }
+
+        Route route = routes.get(id);
+        if (route == null || (route.sender != from && route.recipient != from)) {
+            return;
+        }
+        if (verb.equals("DONE") || verb.equals("CANCEL")) {
+            routes.remove(id, route);
+        }
+        route.other(from).sendTransferControl(verb + " " + from.username + " " + id + arguments);
+    }
+
+    /**
+     * Forwards a chunk to the recipient of its transfer, without decrypting or copying it.
+     *
+     * @param from the client which sent the chunk
+     * @param chunk the chunk frame, as read from the client
+     */
+    void onChunk(ClientConnection from, Frame chunk) {
+        if (chunk.payloadBuffer().remaining() < Long.BYTES) {
+            return;
+        }
+        long id = chunk.payloadBuffer().getLong();
+        Route route = routes.get(id);
+        if (route == null || route.sender != from) {
+            return;
+        }
+        if (route.recipient.getQueuedBytes() > MAX_QUEUED_BYTES) {
+            cancel(id, route, "recipient too slow");
+            return;
+        }
+        route.relayedBytes += chunk.getBytes().length;
+        route.recipient.sendFrame(chunk.getBytes());
+    }
+
+    /**
+     * Cancels every transfer of a client which is disconnecting.
+     *
+     * @param connection the disconnecting client
+     */
+    void onDisconnect(ClientConnection connection) {
+        for (Map.Entry<Long, Route> entry : routes.entrySet()) {
+            Route route = entry.getValue();
+            if (route.sender == connection || route.recipient == connection) {
+                cancel(entry.getKey(), route, "disconnected");
+            }
+        }
+    }
+
+    private void cancel(long id, Route route, String reason) {
+        if (routes.remove(id, route)) {
+            route.sender.sendTransferControl("CANCEL " + route.recipient.username + " " + id + " " + reason);
+            route.recipient.sendTransferControl("CANCEL " + route.sender.username + " " + id + " " + reason);
+        }
+    }
+
+    /**
+     * Describes the transfers in progress, for the server console.
+     *
+     * @return one line per transfer
+     */
+    public Collection<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Long, Route> entry : routes.entrySet()) {
+            Route route = entry.getValue();
+            lines.add(route.sender.username + " -> " + route.recipient.username + " - " + route.name
+                    + " (" + Long.toHexString(entry.getKey()) + "), " + route.relayedBytes + " bytes relayed");
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.LatencyHistogram;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of a {@link LatencyHistogram} in microseconds, shown by JMX as one
+ * composite attribute.
+ */
+public class LatencyStats {
+    private final long count;
+    private final double meanMicros;
+    private final double p50Micros;
+    private final double p99Micros;
+    private final double p999Micros;
+    private final double maxMicros;
+
+    /**
+     * Constructs a snapshot.
+     *
+     * @param count the number of recorded durations
+     * @param meanMicros the mean duration
+     * @param p50Micros the median duration
+     * @param p99Micros the 99th percentile
+     * @param p999Micros the 99.9th percentile
+     * @param maxMicros the longest duration
+     */
+    @ConstructorProperties({"count", "meanMicros", "p50Micros", "p99Micros", "p999Micros", "maxMicros"})
+    public LatencyStats(long count, double meanMicros, double p50Micros, double p99Micros, double p999Micros, double maxMicros) {
+        this.count = count;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.p999Micros = p999Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    /**
+     * Takes a snapshot of a histogram.
+     *
+     * @param histogram the histogram, in nanoseconds
+     * @return the snapshot
+     */
+    public static LatencyStats of(LatencyHistogram histogram) {
+        return new LatencyStats(histogram.getCount(), micros(histogram.getMean()), micros(histogram.getPercentile(50)),
+                micros(histogram.getPercentile(99)), micros(histogram.getPercentile(99.9)), micros(histogram.getMax()));
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public double getP50Micros() {
+        return p50Micros;
+    }
+
+    public double getP99Micros() {
+        return p99Micros;
+    }
+
+    public double getP999Micros() {
+        return p999Micros;
+    }
+
+    public double getMaxMicros() {
+        return maxMicros;
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.ThreadFactories;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the logins of all connections on a few dedicated threads, so that decrypting
+ * credentials and hashing passwords after a restart, when every client reconnects at
+ * once, does not compete with the threads delivering messages. Password changes run
+ * here too, as they wait for the credential file to be synced.
+ * <p>
+ * At most {@link ServerConfig#LOGIN_QUEUE} logins wait for a thread. What happens to
+ * the next ones depends on the {@link OverloadPolicy}: they are either refused with a
+ * hint of when to retry, or held back and offered to the queue again later, leaving the
+ * client waiting for its answer.
+ */
+public class LoginExecutor {
+
+    /**
+     * What to do with a login when the queue is full.
+     */
+    public enum OverloadPolicy {
+        /**
+         * Answer {@link com.github.yagarea.chat.shared.LoginResponse#SERVER_BUSY} with the
+         * number of milliseconds after which the client should try again.
+         */
+        REJECT,
+        /**
+         * Offer the login to the queue again after the retry delay, until it is accepted.
+         */
+        DELAY
+    }
+
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService delayed;
+    private final OverloadPolicy policy;
+    private final long retryAfterMillis;
+
+    /**
+     * Constructs a login executor with its own threads.
+     *
+     * @param threads the number of threads running logins
+     * @param queueLimit the number of logins which may wait for a thread
+     * @param policy what to do with a login when the queue is full
+     * @param retryAfterMillis the delay before a refused or held back login is tried again
+     */
+    public LoginExecutor(int threads, int queueLimit, OverloadPolicy policy, long retryAfterMillis) {
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueLimit), ThreadFactories.platform("login-"));
+        this.delayed = policy == OverloadPolicy.DELAY
+                ? Executors.newSingleThreadScheduledExecutor(ThreadFactories.platform("login-delay-"))
+                : null;
+        this.policy = policy;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Queues a login.
+     *
+     * @param login the login to run
+     * @return false if the login was refused because the queue is full, which only
+     *         happens with {@link OverloadPolicy#REJECT}
+     */
+    public boolean submit(Runnable login) {
+        try {
+            workers.execute(login);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (policy == OverloadPolicy.REJECT) {
+                return false;
+            }
+            delayed.schedule(() -> submit(login), retryAfterMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of logins waiting for a thread.
+     *
+     * @return the depth of the queue
+     */
+    public int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * Returns the delay after which a refused login should be tried again.
+     *
+     * @return the retry delay in milliseconds
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.yagarea.chat.server;
+
+import com.google.common.util.concurrent.Striped;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Keeps the private messages sent to registered users while they are offline, one
+ * mailbox file per user, until the user logs in again and gets them all at once.
+ * <p>
+ * A mailbox is a file of {@code [int length][long time][message]} records, deleted as
+ * soon as it is delivered, so only undelivered messages take space. A mailbox holds
+ * at most {@link ServerConfig#MAILBOX_BYTES} bytes; messages which do not fit are
+ * refused and the sender is told. Files are only read and written on the mailbox
+ * thread and on the login threads, never on the threads delivering messages, and the
+ * operations on one mailbox are serialized by one of {@link #LOCK_STRIPES} striped locks.
+ */
+public class Mailboxes {
+    private static final int LOCK_STRIPES = 256;
+    private static final int RECORD_OVERHEAD = 12;
+    private static final String SUFFIX = ".box";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mailbox-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Opens the mailboxes stored in a directory.
+     *
+     * @param directory the directory of the mailbox files, created if needed
+     * @param maxBytes the largest size of one mailbox
+     * @throws IOException if the directory cannot be created
+     */
+    public Mailboxes(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Runs a task on the mailbox thread, so that connections do not wait for the disk.
+     *
+     * @param task the task, typically storing a message and answering its sender
+     */
+    public void execute(Runnable task) {
+        writer.execute(task);
+    }
+
+    /**
+     * Appends a message to the mailbox of a user, unless the mailbox is full.
+     *
+     * @param username the recipient, who must be a registered user
+     * @param message the message as it will be delivered
+     * @return false if the message does not fit in the mailbox
+     * @throws IOException if the mailbox cannot be written
+     */
+    public boolean store(String username, String message) throws IOException {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + text.length);
+        record.putInt(text.length).putLong(System.currentTimeMillis()).put(text);
+        Path file = mailbox(username);
+        Lock lock = locks.get(username);
+        lock.lock();
+        try {
+            long size = Files.exists(file) ? Files.size(file) : 0;
+            if (size + record.capacity() > maxBytes) {
+                return false;
+            }
+            Files.write(file, record.array(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes every message from the mailbox of a user. A record torn by a crash is skipped.
+     *
+     * @param username the user
+     * @return the messages, oldest first, or an empty list if there are none
+     * @throws IOException if the mailbox cannot be read or deleted
+     */
+    public List<MessageHistory.Entry> take(String username) throws IOException {
+        Path file = mailbox(username);
+        byte[] bytes;
+        Lock lock = locks.get(username);
+        lock.lock();
+        try {
+            try {
+                bytes = Files.readAllBytes(file);
+            } catch (NoSuchFileException e) {
+                return Collections.emptyList();
+            }
+            Files.delete(file);
+        } finally {
+            lock.unlock();
+        }
+        List<MessageHistory.Entry> messages = new ArrayList<>();
+        ByteBuffer records = ByteBuffer.wrap(bytes);
+        while (records.remaining() >= RECORD_OVERHEAD) {
+            int length = records.getInt();
+            long time = records.getLong();
+            if (length < 0 || length > records.remaining()) {
+                break;
+            }
+            messages.add(new MessageHistory.Entry(time, new String(bytes, records.position(), length, StandardCharsets.UTF_8)));
+            records.position(records.position() + length);
+        }
+        return messages;
+    }
+
+    private Path mailbox(String username) {
+        return directory.resolve(username + SUFFIX);
+    }
+}
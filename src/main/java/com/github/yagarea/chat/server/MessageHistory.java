@@ -0,0 +1,335 @@
+package com.github.yagarea.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the messages broadcast in the chat in an append-only log of segment files, so
+ * that users can read what was said before they joined with {@code :history N}.
+ * <p>
+ * Broadcasting only queues the message: a writer thread appends the queued messages in
+ * batches to the active segment, named after the sequence number of its first message,
+ * and starts a new one when it exceeds {@link ServerConfig#HISTORY_SEGMENT_BYTES} or
+ * gets older than {@link ServerConfig#HISTORY_SEGMENT_MILLIS}; only the newest
+ * {@link ServerConfig#HISTORY_SEGMENTS} segments are kept. If the writer falls behind,
+ * messages beyond {@link #MAX_QUEUED} are dropped from the history rather than slowing
+ * the chat down.
+ * <p>
+ * A record is {@code [int length][long time][message][int length]}, so the last messages
+ * are read backwards from the end of the newest segments, which are memory-mapped,
+ * without scanning them. Reads run on their own thread and never wait for the writer.
+ */
+public class MessageHistory {
+    static final int MAX_QUEUED = 65536;
+    private static final int MAX_BATCH = 1024;
+    private static final int RECORD_OVERHEAD = 16;
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long segmentMillis;
+    private final int maxSegments;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+    private final ConcurrentSkipListMap<Long, Path> segments = new ConcurrentSkipListMap<>();
+    private final Map<Path, MappedByteBuffer> sealedMappings = new ConcurrentHashMap<>();
+    private final ExecutorService readers = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "history-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder dropped = new LongAdder();
+
+    private FileChannel active;
+    private long activeBase;
+    private long activeCreated;
+    private long activeSize;
+    private long nextSequence;
+    /** What readers may see of the active segment, published after every batch. */
+    private volatile long[] written = {-1, 0};
+
+    /**
+     * Opens the history stored in a directory and starts its writer.
+     *
+     * @param directory the directory of the segments, created if needed
+     * @param segmentBytes the size from which a new segment is started
+     * @param segmentMillis the age from which a new segment is started
+     * @param maxSegments the number of segments kept
+     * @throws IOException if the directory or the newest segment cannot be opened
+     */
+    public MessageHistory(Path directory, long segmentBytes, long segmentMillis, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.segmentMillis = segmentMillis;
+        this.maxSegments = Math.max(1, maxSegments);
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            recoverActive(segments.lastEntry().getKey(), segments.lastEntry().getValue());
+        }
+        Thread writer = new Thread(this::writeLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a message to be appended to the history. Never blocks.
+     *
+     * @param message the message as broadcast
+     */
+    public void append(String message) {
+        if (!queue.offer(new Entry(System.currentTimeMillis(), message))) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Reads the last messages on the reader thread and passes them, oldest first, to
+     * a consumer.
+     *
+     * @param count the number of messages to read
+     * @param consumer receives every message, then null once they have all been passed
+     */
+    public void replay(int count, Consumer<Entry> consumer) {
+        readers.execute(() -> {
+            try {
+                for (Entry entry : last(count)) {
+                    consumer.accept(entry);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            consumer.accept(null);
+        });
+    }
+
+    /**
+     * Reads the last messages of the history.
+     *
+     * @param count the number of messages to read
+     * @return up to count messages, oldest first
+     * @throws IOException if a segment cannot be mapped
+     */
+    List<Entry> last(int count) throws IOException {
+        Deque<Entry> entries = new ArrayDeque<>();
+        for (Map.Entry<Long, Path> segment : segments.descendingMap().entrySet()) {
+            if (entries.size() >= count) {
+                break;
+            }
+            ByteBuffer mapping;
+            try {
+                mapping = map(segment.getKey(), segment.getValue());
+            } catch (NoSuchFileException e) {
+                // deleted by the writer meanwhile, and so are the older ones
+                break;
+            }
+            int end = mapping.limit();
+            while (end >= RECORD_OVERHEAD && entries.size() < count) {
+                int length = mapping.getInt(end - 4);
+                int start = end - RECORD_OVERHEAD - length;
+                if (length < 0 || start < 0 || mapping.getInt(start) != length) {
+                    break;
+                }
+                byte[] text = new byte[length];
+                ByteBuffer record = mapping.duplicate();
+                record.position(start + 12);
+                record.get(text);
+                entries.addFirst(new Entry(mapping.getLong(start + 4), new String(text, StandardCharsets.UTF_8)));
+                end = start;
+            }
+        }
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * Returns the number of messages which were not kept because the writer was behind.
+     *
+     * @return the number of dropped messages
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Maps a segment; sealed segments are mapped once, the active one up to what has
+     * been written so far.
+     */
+    private ByteBuffer map(long base, Path file) throws IOException {
+        MappedByteBuffer sealed = sealedMappings.get(file);
+        if (sealed != null) {
+            return sealed;
+        }
+        long[] position = written;
+        long size = base == position[0] ? position[1] : -1;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size >= 0 ? size : channel.size());
+            if (size < 0) {
+                sealedMappings.put(file, mapping);
+            }
+            return mapping;
+        }
+    }
+
+    /**
+     * Appends the queued messages in batches, forever.
+     */
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.clear();
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void write(List<Entry> batch) throws IOException {
+        if (activeSize >= segmentBytes || (activeSize > 0 && System.currentTimeMillis() - activeCreated >= segmentMillis)) {
+            roll();
+        }
+        int size = 0;
+        List<byte[]> texts = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            byte[] text = entry.getText().getBytes(StandardCharsets.UTF_8);
+            texts.add(text);
+            size += RECORD_OVERHEAD + text.length;
+        }
+        ByteBuffer records = ByteBuffer.allocate(size);
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] text = texts.get(i);
+            records.putInt(text.length).putLong(batch.get(i).getTime()).put(text).putInt(text.length);
+        }
+        records.flip();
+        while (records.hasRemaining()) {
+            active.write(records);
+        }
+        nextSequence += batch.size();
+        activeSize += size;
+        written = new long[] {activeBase, activeSize};
+    }
+
+    /**
+     * Seals the active segment, starts a new one and deletes the oldest ones.
+     */
+    private void roll() throws IOException {
+        active.close();
+        openSegment(nextSequence);
+        while (segments.size() > maxSegments) {
+            Path oldest = segments.pollFirstEntry().getValue();
+            sealedMappings.remove(oldest);
+            Files.deleteIfExists(oldest);
+        }
+    }
+
+    private void openSegment(long base) throws IOException {
+        Path file = directory.resolve(String.format("%020d%s", base, SUFFIX));
+        active = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeCreated = System.currentTimeMillis();
+        activeSize = 0;
+        activeBase = base;
+        nextSequence = base;
+        written = new long[] {base, 0};
+        segments.put(base, file);
+    }
+
+    /**
+     * Reopens the newest segment, cutting off a record torn by a crash.
+     */
+    private void recoverActive(long base, Path file) throws IOException {
+        long valid = 0;
+        long count = 0;
+        long created = -1;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (valid + RECORD_OVERHEAD <= mapping.limit()) {
+                int length = mapping.getInt((int) valid);
+                long end = valid + RECORD_OVERHEAD + length;
+                if (length < 0 || end > mapping.limit() || mapping.getInt((int) end - 4) != length) {
+                    break;
+                }
+                if (created < 0) {
+                    created = mapping.getLong((int) valid + 4);
+                }
+                valid = end;
+                count++;
+            }
+            if (valid < channel.size()) {
+                channel.truncate(valid);
+            }
+        }
+        active = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeCreated = created < 0 ? System.currentTimeMillis() : created;
+        activeSize = valid;
+        activeBase = base;
+        nextSequence = base + count;
+        written = new long[] {base, valid};
+    }
+
+    /**
+     * A message of the history or of a {@link Mailboxes mailbox}, with the time it was sent.
+     */
+    public static class Entry {
+        private final long time;
+        private final String text;
+
+        Entry(long time, String text) {
+            this.time = time;
+            this.text = text;
+        }
+
+        /**
+         * Returns when the message was sent.
+         *
+         * @return the time in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Returns the message as it was sent.
+         *
+         * @return the text of the message
+         */
+        public String getText() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link ClientConnection} backed by a non-blocking {@link SocketChannel} that is
+ * served by a {@link NioEventLoop}. Incoming bytes are split into lines or binary
+ * frames on the loop thread; outgoing lines may be queued from any thread and the loop drains the
+ * outbound queue as soon as the channel accepts more bytes.
+ * <p>
+ * Queued frames are written together with a gathering write of up to
+ * {@link ServerConfig#FLUSH_BYTES} bytes. Output queued on the loop thread is flushed
+ * after the loop has handled every ready channel, and, with
+ * {@link ServerConfig#FLUSH_DELAY_MICROS}, output queued by other threads while the
+ * connection is busy waits that long for more, while the first frame after a pause
+ * is flushed at once.
+ */
+public class NioClientConnection extends ClientConnection {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_READ_BUFFER_SIZE = Frame.HEADER_LENGTH + Frame.MAX_LENGTH;
+    private static final int MAX_GATHER = 64;
+    private static final long FLUSH_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(ServerConfig.FLUSH_DELAY_MICROS);
+
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteBuffer[] writing = new ByteBuffer[MAX_GATHER];
+    private int writingFrom;
+    private int writingTo;
+    private boolean closing;
+    private volatile long lastFlush;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private SelectionKey key;
+
+    /**
+     * Constructs a NioClientConnection instance.
+     *
+     * @param channel the channel connected to the client
+     * @param eventLoop the event loop which will serve the channel
+     * @param context the clients, keys and services of the server
+     */
+    NioClientConnection(SocketChannel channel, NioEventLoop eventLoop, ServerContext context) {
+        super(context);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Registers the channel with the selector of the event loop and starts the handshake.
+     * Must be called on the event loop thread.
+     *
+     * @throws IOException if the channel cannot be registered
+     */
+    void register() throws IOException {
+        channel.configureBlocking(false);
+        key = channel.register(eventLoop.selector(), SelectionKey.OP_READ, this);
+        open();
+    }
+
+    /**
+     * Reads whatever the channel has available and processes every complete line or
+     * frame. Incomplete ones stay in the read buffer, which grows as needed for large frames.
+     *
+     * @throws IOException if reading from the channel fails or the client sends too much
+     */
+    void handleRead() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            disconnect();
+            return;
+        }
+        readBuffer.flip();
+        int needed;
+        do {
+            needed = isBinaryFrames() ? decodeFrame() : decodeLine();
+        } while (needed == 0 && key.isValid());
+        readBuffer.compact();
+        if (needed > readBuffer.capacity()) {
+            if (needed > MAX_READ_BUFFER_SIZE) {
+                throw new IOException("Message too long");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    /**
+     * Processes the next line in the read buffer, if complete.
+     *
+     * @return 0 if a line was processed, otherwise the buffer size needed to progress
+     * @throws IOException if the line is too long
+     */
+    private int decodeLine() throws IOException {
+        for (int i = readBuffer.position(); i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) == '\n') {
+                byte[] bytes = new byte[i - readBuffer.position()];
+                readBuffer.get(bytes);
+                readBuffer.get();
+                String line = new String(bytes, StandardCharsets.UTF_8);
+                onLine(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+                return 0;
+            }
+        }
+        if (readBuffer.remaining() >= MAX_LINE_LENGTH) {
+            throw new IOException("Line too long");
+        }
+        return readBuffer.remaining() + 1;
+    }
+
+    /**
+     * Processes the next binary frame in the read buffer, if complete.
+     *
+     * @return 0 if a frame was processed, otherwise the buffer size needed to progress
+     */
+    private int decodeFrame() {
+        if (readBuffer.remaining() < Frame.HEADER_LENGTH) {
+            return Frame.HEADER_LENGTH;
+        }
+        int length = readBuffer.getInt(readBuffer.position());
+        Frame.checkLength(length);
+        if (readBuffer.remaining() < Integer.BYTES + length) {
+            return Integer.BYTES + length;
+        }
+        byte[] bytes = new byte[Integer.BYTES + length];
+        readBuffer.get(bytes);
+        onFrame(new Frame(bytes));
+        return 0;
+    }
+
+    /**
+     * Writes queued frames, many at a time, until the queue is empty or the socket
+     * buffer is full, in which case write interest is kept until the channel becomes
+     * writable again.
+     *
+     * @throws IOException if writing to the channel fails
+     */
+    void handleWrite() throws IOException {
+        flushScheduled.set(false);
+        while (true) {
+            if (writingFrom == writingTo) {
+                writingFrom = 0;
+                writingTo = 0;
+                if (!closing) {
+                    gather();
+                }
+                if (writingTo == 0) {
+                    if (closing) {
+                        closeChannel();
+                        return;
+                    }
+                    break;
+                }
+            }
+            channel.write(writing, writingFrom, writingTo - writingFrom);
+            getMetrics().socketWrite();
+            while (writingFrom < writingTo && !writing[writingFrom].hasRemaining()) {
+                writing[writingFrom++] = null;
+            }
+            if (writingFrom < writingTo) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        lastFlush = System.nanoTime();
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Takes queued frames for the next gathering write, up to the flush threshold.
+     */
+    private void gather() {
+        int bytes = 0;
+        while (writingTo < MAX_GATHER && bytes < ServerConfig.FLUSH_BYTES) {
+            byte[] frame = outbound.poll();
+            if (frame == null) {
+                return;
+            }
+            if (frame == OutboundQueue.CLOSE) {
+                closing = true;
+                return;
+            }
+            writing[writingTo++] = ByteBuffer.wrap(frame);
+            bytes += frame.length;
+        }
+    }
+
+    /**
+     * Lets the event loop flush the outbound queue: at the end of the current iteration
+     * if called on the loop thread, or right away, or after the flush delay if the
+     * connection was flushed just before.
+     * Safe to call from any thread.
+     */
+    @Override
+    protected void onQueued() {
+        if (eventLoop.inEventLoop()) {
+            if (outbound.pendingBytes() >= ServerConfig.FLUSH_BYTES) {
+                flush();
+            } else {
+                eventLoop.flushLater(this);
+            }
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            if (FLUSH_DELAY_NANOS > 0 && System.nanoTime() - lastFlush < FLUSH_DELAY_NANOS
+                    && outbound.pendingBytes() < ServerConfig.FLUSH_BYTES) {
+                eventLoop.schedule(this::flush, FLUSH_DELAY_NANOS);
+            } else {
+                eventLoop.execute(this::flush);
+            }
+        }
+    }
+
+    /**
+     * Flushes queued frames on the loop thread, disconnecting the client on failure.
+     */
+    void flush() {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            handleWrite();
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Closes the channel on the event loop thread. Unlike a blocking socket, a closed
+     * channel wakes nobody up, so the client is disconnected right away.
+     */
+    @Override
+    public void close() {
+        if (eventLoop.inEventLoop()) {
+            closeChannel();
+        } else {
+            eventLoop.execute(this::closeChannel);
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        disconnect();
+    }
+}
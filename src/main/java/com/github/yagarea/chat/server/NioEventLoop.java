@@ -0,0 +1,198 @@
+package com.github.yagarea.chat.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single-threaded event loop owning one {@link Selector}. Every
+ * {@link NioClientConnection} registered with a loop is read from and written to
+ * exclusively by that loop's thread; other threads hand work over through
+ * {@link #execute(Runnable)} or {@link #schedule(Runnable, long)}.
+ * <p>
+ * Connections which queue output while the loop handles other channels are flushed
+ * once, after every ready channel has been handled, so that the replies to a batch of
+ * reads leave in as few writes as possible.
+ */
+public class NioEventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final Set<NioClientConnection> pendingFlushes = new LinkedHashSet<>();
+    private volatile Thread thread;
+
+    /**
+     * Constructs an event loop with a freshly opened selector.
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    public NioEventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Returns the selector of this loop. It must only be used from the loop thread.
+     *
+     * @return the selector
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Checks whether the caller runs on this loop's thread.
+     *
+     * @return true if called from the loop thread
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Schedules a task to run on the loop thread and wakes the selector up.
+     *
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Schedules a task to run on the loop thread after a delay. The selector waits in
+     * milliseconds, so shorter delays are rounded up to one.
+     *
+     * @param task the task to run
+     * @param delayNanos the delay in nanoseconds
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        Timer timer = new Timer(System.nanoTime() + delayNanos, task);
+        if (inEventLoop()) {
+            timers.add(timer);
+        } else {
+            execute(() -> timers.add(timer));
+        }
+    }
+
+    /**
+     * Flushes a connection once the ready channels of this iteration have been handled.
+     * Must be called on the loop thread.
+     *
+     * @param connection the connection with output to flush
+     */
+    void flushLater(NioClientConnection connection) {
+        pendingFlushes.add(connection);
+    }
+
+    /**
+     * Selects ready channels forever and dispatches read and write readiness to the
+     * {@link NioClientConnection} attached to each key.
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (true) {
+            try {
+                Timer next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long wait = TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime() + 999_999);
+                    if (wait > 0) {
+                        selector.select(wait);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                runTasks();
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    NioClientConnection connection = (NioClientConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.handleRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.handleWrite();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        connection.disconnect();
+                    }
+                }
+                runTimers();
+                flushPending();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Runs the timers whose deadline has passed.
+     */
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            try {
+                timers.poll().task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Flushes the connections which queued output during this iteration.
+     */
+    private void flushPending() {
+        if (pendingFlushes.isEmpty()) {
+            return;
+        }
+        NioClientConnection[] connections = pendingFlushes.toArray(new NioClientConnection[0]);
+        pendingFlushes.clear();
+        for (NioClientConnection connection : connections) {
+            connection.flush();
+        }
+    }
+
+    /**
+     * Runs all the tasks handed over by other threads.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A task to run at a deadline, in the order of the deadlines.
+     */
+    private static class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
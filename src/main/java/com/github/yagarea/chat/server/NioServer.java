@@ -0,0 +1,65 @@
+package com.github.yagarea.chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking alternative to the thread-per-connection accept loop of {@link Server}.
+ * Accepted channels are spread round-robin over a small, fixed pool of
+ * {@link NioEventLoop}s, so the number of threads no longer grows with the number
+ * of connected clients.
+ */
+public class NioServer {
+    private final NioEventLoop[] eventLoops;
+    private final ServerContext context;
+
+    /**
+     * Constructs a NioServer and starts its event loop threads.
+     *
+     * @param eventLoopCount the number of event loop threads
+     * @param context the clients, keys and services of the server
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioServer(int eventLoopCount, ServerContext context) throws IOException {
+        this.context = context;
+        this.eventLoops = new NioEventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new NioEventLoop();
+            Thread loopThread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            loopThread.start();
+        }
+    }
+
+    /**
+     * Accepts connections on the given port forever and hands each of them to an event loop.
+     *
+     * @param port the port on which the server will listen
+     * @throws IOException if the server channel cannot be bound
+     */
+    public void serve(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                NioEventLoop eventLoop = eventLoops[next];
+                next = (next + 1) % eventLoops.length;
+                NioClientConnection connection = new NioClientConnection(channel, eventLoop, context);
+                eventLoop.execute(() -> {
+                    try {
+                        connection.register();
+                    } catch (IOException e) {
+                        connection.disconnect();
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
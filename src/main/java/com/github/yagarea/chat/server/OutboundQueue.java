@@ -0,0 +1,172 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.Frame;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The frames waiting to be written to one client. Senders only append to the queue,
+ * the writer of the connection drains it, so a slow client never blocks its senders.
+ * The depth of the queue is tracked to make slow clients visible, and bounded by the
+ * {@link OverflowPolicy policies} the connection applies above its watermarks.
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do with the output of a client which has more queued bytes than a watermark.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest queued messages until the new one fits under the watermark.
+         * File transfer frames, and frames queued as not droppable, are never dropped.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop new broadcasts, and keep queueing replies, private messages and transfers.
+         */
+        DROP_BROADCASTS,
+        /**
+         * Drop everything queued, tell the client why and disconnect it.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * Marker frame telling the writer to close the connection once everything queued
+     * before it has been written.
+     */
+    public static final byte[] CLOSE = new byte[0];
+
+    private final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    /** The queued frames {@link #dropOldest()} must skip, compared by identity. */
+    private final Set<byte[]> kept = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Appends a frame ready to be written to the socket.
+     *
+     * @param frame the bytes of the frame
+     */
+    public void add(byte[] frame) {
+        add(frame, true);
+    }
+
+    /**
+     * Appends a frame ready to be written to the socket.
+     *
+     * @param frame the bytes of the frame
+     * @param droppable false for a frame that cannot be sent again once dropped, such as
+     *                  the content of a mailbox, which {@link #dropOldest()} then skips
+     */
+    public void add(byte[] frame, boolean droppable) {
+        if (!droppable) {
+            kept.add(frame);
+        }
+        pendingBytes.addAndGet(frame.length);
+        frames.add(frame);
+    }
+
+    /**
+     * Removes the oldest frame, waiting for one if the queue is empty.
+     *
+     * @return the oldest frame
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public byte[] take() throws InterruptedException {
+        byte[] frame = frames.take();
+        taken(frame);
+        return frame;
+    }
+
+    /**
+     * Removes the oldest frame without waiting.
+     *
+     * @return the oldest frame, or null if the queue is empty
+     */
+    public byte[] poll() {
+        byte[] frame = frames.poll();
+        if (frame != null) {
+            taken(frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Removes the oldest frame, waiting for one up to a timeout if the queue is empty.
+     *
+     * @param timeout how long to wait
+     * @param unit the unit of the timeout
+     * @return the oldest frame, or null if none was queued in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public byte[] poll(long timeout, TimeUnit unit) throws InterruptedException {
+        byte[] frame = frames.poll(timeout, unit);
+        if (frame != null) {
+            taken(frame);
+        }
+        return frame;
+    }
+
+    private void taken(byte[] frame) {
+        pendingBytes.addAndGet(-frame.length);
+        kept.remove(frame);
+    }
+
+    /**
+     * Removes the oldest queued chat message, or batch of messages. File transfer frames
+     * and frames queued as not droppable are skipped, and nothing queued after
+     * {@link #CLOSE} is removed.
+     *
+     * @return false if there was nothing to remove
+     */
+    public boolean dropOldest() {
+        Iterator<byte[]> queued = frames.iterator();
+        while (queued.hasNext()) {
+            byte[] frame = queued.next();
+            if (frame == CLOSE) {
+                return false;
+            }
+            boolean transfer = frame.length > Frame.HEADER_LENGTH
+                    && (frame[Integer.BYTES] == Frame.TRANSFER || frame[Integer.BYTES] == Frame.CHUNK);
+            // the writer may have taken the frame meanwhile
+            if (!transfer && !kept.contains(frame) && frames.remove(frame)) {
+                pendingBytes.addAndGet(-frame.length);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes every queued frame.
+     */
+    public void clear() {
+        while (poll() != null) {
+            // discarded
+        }
+    }
+
+    /**
+     * Returns the number of frames waiting to be written.
+     *
+     * @return the number of queued frames
+     */
+    public int depth() {
+        return frames.size();
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written.
+     *
+     * @return the number of queued bytes
+     */
+    public long pendingBytes() {
+        return pendingBytes.get();
+    }
+}
@@ -0,0 +1,161 @@
+package com.github.yagarea.chat.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One TCP link to another node of a {@link ClusterNode cluster}, carrying one command
+ * per line.
+ * <p>
+ * Lines are queued by any thread and written by the writer thread of the link, which
+ * takes every line queued while it was writing the previous ones and flushes them with
+ * a single write: a burst of relayed messages shares one packet, and a lone message
+ * never waits for a timer. A peer which reads too slowly for {@link #MAX_QUEUED} lines
+ * to fit in the queue is disconnected, and resynchronized when the link is back.
+ */
+class PeerLink {
+    static final int MAX_QUEUED = 65536;
+    private static final int MAX_BATCH = 1024;
+    private static final String CLOSE = new String("CLOSE");
+
+    private final Socket socket;
+    private final BufferedReader reader;
+    private final BufferedWriter writer;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * Wraps a connected socket and starts the writer of the link.
+     *
+     * @param socket the socket connected to the other node
+     * @throws IOException if the streams of the socket cannot be opened
+     */
+    PeerLink(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        Thread thread = new Thread(this::writeLoop, "cluster-writer-" + socket.getRemoteSocketAddress());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a line to be sent to the other node. Never blocks.
+     *
+     * @param line the command, without a line terminator
+     */
+    void send(String line) {
+        if (!closed && !queue.offer(line)) {
+            System.err.println("CLUSTER: " + socket.getRemoteSocketAddress() + " is too slow, dropping the link");
+            close();
+        }
+    }
+
+    /**
+     * Reads the next line sent by the other node.
+     *
+     * @return the line, or null once the link is closed
+     * @throws IOException if the socket fails
+     */
+    String readLine() throws IOException {
+        return reader.readLine();
+    }
+
+    /**
+     * Reads the next line sent by the other node, refusing lines longer than a limit,
+     * for the lines read before the other node has proven it belongs to the cluster.
+     *
+     * @param maxLength the largest number of characters accepted
+     * @return the line, or null once the link is closed
+     * @throws IOException if the socket fails or the line is too long
+     */
+    String readLine(int maxLength) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+            }
+            if (line.length() == maxLength) {
+                throw new IOException("Line longer than " + maxLength + " characters");
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * Closes the link; the reader then gets null or an exception.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        queue.offer(CLOSE);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the number of lines written to the other node.
+     *
+     * @return the number of lines
+     */
+    long getLines() {
+        return lines.sum();
+    }
+
+    /**
+     * Returns the number of flushes it took to write them, one per batch.
+     *
+     * @return the number of writes
+     */
+    long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * Writes the queued lines in batches until the link is closed.
+     */
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.clear();
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (String line : batch) {
+                    if (line == CLOSE) {
+                        return;
+                    }
+                    writer.write(line);
+                    writer.write('\n');
+                }
+                writer.flush();
+                lines.add(batch.size());
+                writes.increment();
+            }
+        } catch (IOException | InterruptedException e) {
+            close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.yagarea.chat.server;
+
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The users online on this server and, in a cluster, on the other nodes.
+ * <p>
+ * Joins and leaves update a sorted skip list in place and bump a version. Readers get
+ * an immutable {@link PresenceSnapshot}, copied from the list only when the version has
+ * changed since the last one, so a burst of logins costs one copy for the next reader
+ * instead of one per login, and readers never walk the live maps of connections.
+ */
+public class Presence {
+    private final ConcurrentSkipListSet<String> users = new ConcurrentSkipListSet<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile PresenceSnapshot snapshot = new PresenceSnapshot(0, new String[0]);
+
+    /**
+     * Adds a user who came online.
+     *
+     * @param username the user
+     */
+    public void add(String username) {
+        if (users.add(username)) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes a user who went offline.
+     *
+     * @param username the user
+     */
+    public void remove(String username) {
+        if (users.remove(username)) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the users online, as of the latest version.
+     *
+     * @return an immutable snapshot of the users online
+     */
+    public PresenceSnapshot snapshot() {
+        PresenceSnapshot current = snapshot;
+        if (current.getVersion() == version.get()) {
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            // read before copying: a change made during the copy gets a new snapshot later
+            long latest = version.get();
+            if (current.getVersion() != latest) {
+                current = new PresenceSnapshot(latest, users.toArray(new String[0]));
+                snapshot = current;
+            }
+            return current;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.yagarea.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable, sorted list of the users online at one {@link Presence#snapshot() version}
+ * of the presence. Pages of the list are rendered once per version and shared by every
+ * client asking for them; a prefix is found by binary search.
+ */
+public class PresenceSnapshot {
+    private static final int MAX_CACHED_PAGES = 1024;
+
+    private final long version;
+    private final String[] users;
+    private final Map<String, List<String>> pages = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a snapshot.
+     *
+     * @param version the version of the presence the users were taken from
+     * @param users the users online, sorted
+     */
+    PresenceSnapshot(long version, String[] users) {
+        this.version = version;
+        this.users = users;
+    }
+
+    /**
+     * Returns the version of the presence the snapshot was taken from.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the users online.
+     *
+     * @return the usernames, sorted
+     */
+    public List<String> getUsers() {
+        return Collections.unmodifiableList(Arrays.asList(users));
+    }
+
+    /**
+     * Renders one page of the users whose names start with a prefix: a header line
+     * followed by one line per user.
+     *
+     * @param prefix the prefix, possibly empty
+     * @param page the page, from 1; pages past the last one give the last one
+     * @param pageSize the number of users per page
+     * @return the lines of the page
+     */
+    public List<String> page(String prefix, int page, int pageSize) {
+        String key = prefix + " " + page + " " + pageSize;
+        List<String> cached = pages.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        int from = prefix.isEmpty() ? 0 : lowerBound(prefix);
+        int to = prefix.isEmpty() ? users.length : lowerBound(prefix + Character.MAX_VALUE);
+        int total = to - from;
+        int pageCount = Math.max(1, (total + pageSize - 1) / pageSize);
+        int current = Math.max(1, Math.min(page, pageCount));
+        int first = from + (current - 1) * pageSize;
+        int last = Math.min(to, first + pageSize);
+        List<String> lines = new ArrayList<>(last - first + 1);
+        lines.add("ONLINE USERS" + (prefix.isEmpty() ? "" : " STARTING WITH " + prefix) + ": " + total
+                + (pageCount > 1 ? ", PAGE " + current + "/" + pageCount : ""));
+        for (int i = first; i < last; i++) {
+            lines.add("\t" + users[i]);
+        }
+        lines = Collections.unmodifiableList(lines);
+        if (pages.size() < MAX_CACHED_PAGES) {
+            pages.put(key, lines);
+        }
+        return lines;
+    }
+
+    /**
+     * Finds the index of the first user not before a name.
+     */
+    private int lowerBound(String name) {
+        int index = Arrays.binarySearch(users, name);
+        return index >= 0 ? index : -index - 1;
+    }
+}
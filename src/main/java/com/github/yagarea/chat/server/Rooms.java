@@ -0,0 +1,149 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.ThreadFactories;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The rooms of the chat. Every logged in user is in exactly one room, the default
+ * room ({@link ServerConfig#DEFAULT_ROOM}) until it joins another one, and broadcasts
+ * and join and leave notices only reach the members of that room.
+ * <p>
+ * Each room keeps its own registry of members, so a broadcast only walks the room it
+ * is sent to. Each room also has its own sequential queue of fan-outs, run on a pool
+ * of {@link ServerConfig#ROOM_THREADS} threads shared by all rooms. The broadcasts of
+ * one room are delivered one after the other, in the order they were sent, while other
+ * rooms go on on the other threads, so a large room never holds up a small one. Senders
+ * do not wait for the fan-out. Empty rooms, but the default one, are removed.
+ */
+public class Rooms {
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final BroadcastFanOut fanOut;
+    private final ExecutorService pool;
+    private final String defaultRoom;
+
+    /**
+     * Constructs the rooms of a server with their own pool.
+     *
+     * @param fanOut the delivery of broadcasts to the members of a room
+     * @param threads the number of threads running the fan-outs of all rooms
+     * @param defaultRoom the name of the room users are in when they log in
+     */
+    public Rooms(BroadcastFanOut fanOut, int threads, String defaultRoom) {
+        this.fanOut = fanOut;
+        this.pool = Executors.newFixedThreadPool(threads, ThreadFactories.platform("room-"));
+        this.defaultRoom = defaultRoom;
+    }
+
+    /**
+     * Returns the name of the room users are in when they log in.
+     *
+     * @return the name of the default room
+     */
+    public String getDefaultRoom() {
+        return defaultRoom;
+    }
+
+    /**
+     * Looks a room up.
+     *
+     * @param name the name of the room
+     * @return the room, or null if it has no members here
+     */
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Adds a member to a room, creating the room if it does not exist.
+     *
+     * @param name the name of the room
+     * @param member the connection joining the room
+     * @return the room
+     */
+    public Room join(String name, ClientConnection member) {
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new Room(key, MoreExecutors.newSequentialExecutor(pool));
+            }
+            room.members.add(member);
+            return room;
+        });
+    }
+
+    /**
+     * Removes a member from a room, and the room if it is empty and not the default one.
+     *
+     * @param room the room
+     * @param member the connection leaving the room
+     */
+    public void leave(Room room, ClientConnection member) {
+        rooms.computeIfPresent(room.getName(), (key, current) -> {
+            current.members.remove(member);
+            return current.members.isEmpty() && !key.equals(defaultRoom) ? null : current;
+        });
+    }
+
+    /**
+     * Returns the number of members of every room.
+     *
+     * @return the number of members by room name, in the order of the names
+     */
+    public Map<String, Integer> list() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        for (Room room : rooms.values()) {
+            sizes.put(room.getName(), room.size());
+        }
+        return sizes;
+    }
+
+    /**
+     * A room and its members.
+     */
+    public class Room {
+        private final String name;
+        private final Set<ClientConnection> members = ConcurrentHashMap.newKeySet();
+        private final Executor fanOuts;
+
+        private Room(String name, Executor fanOuts) {
+            this.name = name;
+            this.fanOuts = fanOuts;
+        }
+
+        /**
+         * Returns the name of the room.
+         *
+         * @return the name of the room
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of members of the room.
+         *
+         * @return the number of members
+         */
+        public int size() {
+            return members.size();
+        }
+
+        /**
+         * Queues a message for every member of the room but the sender, after the
+         * messages broadcast to the room before.
+         *
+         * @param sender the connection which must not receive its own message, or null
+         * @param message the plain text message
+         */
+        public void broadcast(ClientConnection sender, String message) {
+            fanOuts.execute(() -> fanOut.broadcast(members, sender, message));
+        }
+    }
+}
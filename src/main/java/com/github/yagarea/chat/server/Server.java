@@ -1,13 +1,20 @@
 package com.github.yagarea.chat.server;
 
 import com.github.yagarea.chat.shared.security.RSA;
+import com.github.yagarea.chat.shared.security.RsaKeyStore;
 import com.github.yagarea.chat.shared.SharedFunctions;
+import com.github.yagarea.chat.shared.ThreadFactories;
 
+import javax.management.JMException;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap; 
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The main server class that listens for incoming client connections, initializes
@@ -16,19 +23,96 @@ import java.util.concurrent.ConcurrentHashMap;
  * for secure client communications.
  */
 public class Server {
+    /** Buckets of the wheel of connection timeouts: at 100 ms a tick, one turn takes 51 s. */
+    private static final int TIMER_WHEEL_SIZE = 512;
 
     /**
      * The entry point of the server application. It sets up the RSA decryptor, 
      * initializes the server socket on the specified port, and starts listening 
      * for incoming client connections. For each new connection, a new thread is 
-     * started to handle communication with the client.
+     * started to handle communication with the client, a virtual one if selected in
+     * {@link ServerConfig#THREADS}, unless the {@code nio} mode
+     * is selected in {@link ServerConfig#MODE}, in which case the connections are
+     * served by a {@link NioServer}.
      *
      * @param args the command-line arguments. args[0] is the path to the authentication 
      *             file, and args[1] is the port number on which the server will listen.
      */
     public static void main(String[] args) {
-        RSA decryptor = new RSA();
+        if (ServerConfig.CLUSTER_PORT > 0 && ServerConfig.CLUSTER_SECRET.isEmpty()) {
+            System.err.println("chat.cluster.secret must be set when chat.cluster.port is");
+            return;
+        }
+        RSA decryptor;
+        try {
+            decryptor = loadKeys();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
         final int PORT = Integer.parseInt(args[1]);
+        Map<String, ClientConnection> clients = new ConcurrentHashMap<>();
+        Authenticator auth = new Authenticator(args[0]);
+        BroadcastFanOut fanOut = new BroadcastFanOut(ServerConfig.BROADCAST_PARALLELISM, ServerConfig.BROADCAST_PARALLEL_THRESHOLD);
+        ServerMetrics metrics = new ServerMetrics(fanOut, auth);
+        metrics.start();
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        MessageHistory history = null;
+        if (!ServerConfig.HISTORY_DIR.isEmpty()) {
+            try {
+                history = new MessageHistory(Paths.get(ServerConfig.HISTORY_DIR), ServerConfig.HISTORY_SEGMENT_BYTES,
+                        ServerConfig.HISTORY_SEGMENT_MILLIS, ServerConfig.HISTORY_SEGMENTS);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        Mailboxes mailboxes = null;
+        if (!ServerConfig.MAILBOX_DIR.isEmpty()) {
+            try {
+                mailboxes = new Mailboxes(Paths.get(ServerConfig.MAILBOX_DIR), ServerConfig.MAILBOX_BYTES);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        Rooms rooms = new Rooms(fanOut, ServerConfig.ROOM_THREADS, ServerConfig.DEFAULT_ROOM);
+        Presence presence = new Presence();
+        ClusterNode cluster = null;
+        if (ServerConfig.CLUSTER_PORT > 0) {
+            List<String> peers = new ArrayList<>();
+            for (String peer : ServerConfig.CLUSTER_PEERS.split(",")) {
+                if (!peer.trim().isEmpty()) {
+                    peers.add(peer.trim());
+                }
+            }
+            cluster = new ClusterNode(ServerConfig.CLUSTER_NODE, ServerConfig.CLUSTER_PORT, peers, ServerConfig.CLUSTER_SECRET,
+                    ServerConfig.CLUSTER_RETRY, clients, auth, rooms, presence);
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                cluster = null;
+            }
+        }
+        ServerContext context = new ServerContext(clients, decryptor, auth, fanOut, new FileRelay(), metrics,
+                new LoginExecutor(ServerConfig.LOGIN_THREADS, ServerConfig.LOGIN_QUEUE, ServerConfig.LOGIN_OVERLOAD, ServerConfig.LOGIN_RETRY_AFTER),
+                history, mailboxes, rooms, cluster, presence,
+                new HashedTimingWheel(ServerConfig.TIMER_TICK, TIMER_WHEEL_SIZE, "connection-timers"));
+
+        if (ServerConfig.MODE.equals("nio")) {
+            try {
+                NioServer nioServer = new NioServer(ServerConfig.EVENT_LOOPS, context);
+                new Thread(new ServerConsole(context)).start();
+                SharedFunctions.screenColours();
+                nioServer.serve(PORT);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
 
         ServerSocket chatServer = null;
         try {
@@ -36,20 +120,36 @@ public class Server {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        Map<String, ClientConnection> clients = new ConcurrentHashMap<>();
-        Authenticator auth = new Authenticator(args[0]);
 
-        new Thread(new ServerConsole(clients)).start();
+        new Thread(new ServerConsole(context)).start();
         SharedFunctions.screenColours();
+        ThreadFactory connectionThreads = ThreadFactories.forMode(ServerConfig.THREADS, "client-connection-");
+        ThreadFactory writerThreads = ThreadFactories.forMode(ServerConfig.THREADS, "client-writer-");
 
         while (chatServer != null) {
             try {
                 Socket clientSocket = chatServer.accept();
-                ClientConnectionRunnable clientConnectionInit = new ClientConnectionRunnable(clientSocket, clients, decryptor, auth);
-                new Thread(clientConnectionInit).start();
+                clientSocket.setTcpNoDelay(true);
+                clientSocket.setKeepAlive(true);
+                ClientConnectionRunnable clientConnectionInit = new ClientConnectionRunnable(clientSocket, context, writerThreads);
+                connectionThreads.newThread(clientConnectionInit).start();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Loads the RSA key pair of the server from {@link ServerConfig#KEY_STORE}, or
+     * generates one, saving it unless the key store is disabled.
+     *
+     * @return the RSA key pair of the server
+     * @throws IOException if the key store cannot be read or written
+     */
+    private static RSA loadKeys() throws IOException {
+        if (ServerConfig.KEY_STORE.isEmpty()) {
+            return RSA.generate(RSA.DEFAULT_BITS, RSA.DEFAULT_EXPONENT, RSA.DEFAULT_THREADS);
+        }
+        return RsaKeyStore.loadOrGenerate(Paths.get(ServerConfig.KEY_STORE), RSA.DEFAULT_BITS, RSA.DEFAULT_EXPONENT, RSA.DEFAULT_THREADS);
+    }
+}
@@ -0,0 +1,268 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.Handshake;
+
+/**
+ * Tunable server settings, read once from Java system properties so they can be
+ * passed on the command line without changing the positional arguments, e.g.
+ * <pre>
+ * java -Dchat.server.mode=nio -jar server.jar Authentication.txt 4444
+ * </pre>
+ */
+public final class ServerConfig {
+
+    /**
+     * How client connections are served: {@code blocking} (one thread per client)
+     * or {@code nio} (a few selector event loops shared by all clients).
+     */
+    public static final String MODE = System.getProperty("chat.server.mode", "blocking");
+
+    /**
+     * Number of selector event loop threads used in {@code nio} mode.
+     */
+    public static final int EVENT_LOOPS = Integer.getInteger("chat.server.eventLoops",
+            Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Which threads run blocking client connections: {@code platform} or {@code virtual}.
+     * Virtual threads need a build made with the {@code virtual-threads} profile and Java 21+.
+     */
+    public static final String THREADS = System.getProperty("chat.server.threads", "platform");
+
+    /**
+     * Number of threads encrypting large broadcasts in parallel.
+     */
+    public static final int BROADCAST_PARALLELISM = Integer.getInteger("chat.server.broadcast.parallelism",
+            Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Number of recipients from which a broadcast is encrypted in parallel rather than
+     * sequentially on the sender's thread.
+     */
+    public static final int BROADCAST_PARALLEL_THRESHOLD = Integer.getInteger("chat.server.broadcast.parallelThreshold", 128);
+
+    /**
+     * Whether clients may switch to the length-prefixed binary frames instead of lines.
+     */
+    public static final boolean BINARY_FRAMES = Boolean.parseBoolean(System.getProperty("chat.server.binary", "true"));
+
+    /**
+     * The file holding the RSA key pair of the server, generated on the first start.
+     * An empty value generates a fresh key pair on every start instead.
+     */
+    public static final String KEY_STORE = System.getProperty("chat.server.keyStore", "server-key.properties");
+
+    /**
+     * The number of obsolete records in the credential file from which it is compacted,
+     * once they also outnumber the live ones. See {@link CredentialLog}.
+     */
+    public static final int AUTH_COMPACT_THRESHOLD = Integer.getInteger("chat.server.auth.compactThreshold", 1000);
+
+    /**
+     * Whether every batch of credential records is forced to disk before the
+     * registrations and password changes in it are acknowledged.
+     */
+    public static final boolean AUTH_FSYNC = Boolean.parseBoolean(System.getProperty("chat.server.auth.fsync", "true"));
+
+    /**
+     * The number of threads running logins, half the processors by default so that a
+     * login storm leaves room for message traffic.
+     */
+    public static final int LOGIN_THREADS = Integer.getInteger("chat.server.login.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * The number of logins which may wait for a login thread.
+     */
+    public static final int LOGIN_QUEUE = Integer.getInteger("chat.server.login.queue", 1024);
+
+    /**
+     * What to do with logins when the queue is full: {@code reject} or {@code delay}.
+     * See {@link LoginExecutor.OverloadPolicy}.
+     */
+    public static final LoginExecutor.OverloadPolicy LOGIN_OVERLOAD = LoginExecutor.OverloadPolicy.valueOf(
+            System.getProperty("chat.server.login.overload", "reject").toUpperCase());
+
+    /**
+     * The delay in milliseconds after which a refused or held back login is tried again.
+     */
+    public static final long LOGIN_RETRY_AFTER = Long.getLong("chat.server.login.retryAfter", 1000);
+
+    /**
+     * Whether users are looked up in a memory-mapped index of the credential file, built
+     * next to it as {@code <file>.idx}, instead of being read at startup.
+     * See {@link CredentialIndex}.
+     */
+    public static final boolean AUTH_INDEX = Boolean.parseBoolean(System.getProperty("chat.server.auth.index", "false"));
+
+    /**
+     * The directory of the message history, or an empty value, the default, to keep no
+     * history. The messages are stored there in plaintext. See {@link MessageHistory}.
+     */
+    public static final String HISTORY_DIR = System.getProperty("chat.server.history.dir", "");
+
+    /**
+     * The size in bytes from which a new history segment is started.
+     */
+    public static final long HISTORY_SEGMENT_BYTES = Long.getLong("chat.server.history.segmentBytes", 16 << 20);
+
+    /**
+     * The age in milliseconds from which a new history segment is started.
+     */
+    public static final long HISTORY_SEGMENT_MILLIS = Long.getLong("chat.server.history.segmentMillis", 3600000);
+
+    /**
+     * The number of history segments kept, older ones are deleted.
+     */
+    public static final int HISTORY_SEGMENTS = Integer.getInteger("chat.server.history.segments", 16);
+
+    /**
+     * The largest number of messages a client can ask for with {@code :history}.
+     */
+    public static final int HISTORY_MAX = Integer.getInteger("chat.server.history.max", 1000);
+
+    /**
+     * The directory of the mailboxes of offline users, or an empty value, the default,
+     * to refuse private messages to offline users. The messages are stored there in
+     * plaintext. See {@link Mailboxes}.
+     */
+    public static final String MAILBOX_DIR = System.getProperty("chat.server.mailbox.dir", "");
+
+    /**
+     * The largest size in bytes of the mailbox of one user.
+     */
+    public static final long MAILBOX_BYTES = Long.getLong("chat.server.mailbox.bytes", 64 << 10);
+
+    /**
+     * The room users are in when they log in.
+     */
+    public static final String DEFAULT_ROOM = System.getProperty("chat.server.rooms.default", "lobby");
+
+    /**
+     * Number of threads running the fan-outs of the rooms; each room uses one at a time.
+     */
+    public static final int ROOM_THREADS = Integer.getInteger("chat.server.rooms.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The port on which other nodes of the cluster connect, 0 to run a single server.
+     * See {@link ClusterNode}.
+     */
+    public static final int CLUSTER_PORT = Integer.getInteger("chat.cluster.port", 0);
+
+    /**
+     * The name of this node, by which the other nodes know it; its {@code host:port}
+     * by default, as other nodes list it in their peers.
+     */
+    public static final String CLUSTER_NODE = System.getProperty("chat.cluster.node", "localhost:" + CLUSTER_PORT);
+
+    /**
+     * The comma separated {@code host:port} addresses of the other nodes of the cluster
+     * which this node dials.
+     */
+    public static final String CLUSTER_PEERS = System.getProperty("chat.cluster.peers", "");
+
+    /**
+     * The secret shared by the nodes of the cluster; links from nodes which do not know
+     * it are refused. Required to run a cluster: the server does not start without it.
+     */
+    public static final String CLUSTER_SECRET = System.getProperty("chat.cluster.secret", "");
+
+    /**
+     * The delay in milliseconds before an unreachable node is dialed again.
+     */
+    public static final long CLUSTER_RETRY = Long.getLong("chat.cluster.retryMillis", 2000);
+
+    /**
+     * The number of users per page of the answer to {@code :clients}.
+     */
+    public static final int CLIENTS_PAGE = Integer.getInteger("chat.server.clients.page", 100);
+
+    /**
+     * The number of queued bytes written to a client at once; output is flushed as soon
+     * as this many bytes are waiting.
+     */
+    public static final int FLUSH_BYTES = Integer.getInteger("chat.server.flush.bytes", 16384);
+
+    /**
+     * How long in microseconds the writer of a client which has just been flushed waits
+     * for more output before flushing again; 0 only coalesces what is already queued.
+     */
+    public static final long FLUSH_DELAY_MICROS = Long.getLong("chat.server.flush.delayMicros", 0);
+
+    /**
+     * Whether the server accepts the {@link Handshake#DEFLATE} feature offered by clients.
+     */
+    public static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("chat.server.compress", "true"));
+
+    /**
+     * The size in bytes from which messages to clients which accepted compression are
+     * compressed before they are encrypted.
+     */
+    public static final int COMPRESS_THRESHOLD = Integer.getInteger("chat.server.compress.threshold", 96);
+
+    /**
+     * The number of bytes queued for a client beyond which it is a slow consumer, and
+     * {@link #OUTBOUND_LOW_POLICY} applies to its output.
+     */
+    public static final long OUTBOUND_LOW_WATERMARK = Long.getLong("chat.server.outbound.lowWatermark", 1 << 20);
+
+    /**
+     * What to do with the output of a client beyond the low watermark:
+     * {@code drop_oldest}, {@code drop_broadcasts} or {@code disconnect}.
+     * See {@link OutboundQueue.OverflowPolicy}.
+     */
+    public static final OutboundQueue.OverflowPolicy OUTBOUND_LOW_POLICY = OutboundQueue.OverflowPolicy.valueOf(
+            System.getProperty("chat.server.outbound.lowPolicy", "drop_broadcasts").toUpperCase());
+
+    /**
+     * The number of bytes queued for a client beyond which {@link #OUTBOUND_HIGH_POLICY}
+     * applies instead. Above the queue at which {@link FileRelay} stops relaying chunks.
+     */
+    public static final long OUTBOUND_HIGH_WATERMARK = Long.getLong("chat.server.outbound.highWatermark", 16 << 20);
+
+    /**
+     * What to do with the output of a client beyond the high watermark, like
+     * {@link #OUTBOUND_LOW_POLICY}.
+     */
+    public static final OutboundQueue.OverflowPolicy OUTBOUND_HIGH_POLICY = OutboundQueue.OverflowPolicy.valueOf(
+            System.getProperty("chat.server.outbound.highPolicy", "disconnect").toUpperCase());
+
+    /**
+     * How long in milliseconds a client disconnected for reading too slowly gets to read
+     * the notice before its connection is closed anyway.
+     */
+    public static final long OUTBOUND_EVICT_GRACE = Long.getLong("chat.server.outbound.evictGraceMillis", 2000);
+
+    /**
+     * The time in milliseconds a client gets to send its public key after connecting.
+     */
+    public static final long HANDSHAKE_TIMEOUT = Long.getLong("chat.server.handshakeTimeoutMillis", 10000);
+
+    /**
+     * The time in milliseconds a client gets to log in after sending its public key,
+     * long enough for a user to type a nickname and a password.
+     */
+    public static final long LOGIN_TIMEOUT = Long.getLong("chat.server.loginTimeoutMillis", 120000);
+
+    /**
+     * The time in milliseconds after which a quiet client is sent a heartbeat, if it
+     * accepted {@link Handshake#HEARTBEAT}; 0 turns heartbeats off.
+     */
+    public static final long HEARTBEAT_INTERVAL = Long.getLong("chat.server.heartbeat.intervalMillis", 15000);
+
+    /**
+     * The time in milliseconds after which a client with heartbeats which has sent
+     * nothing, not even an answer to a heartbeat, is disconnected.
+     */
+    public static final long IDLE_TIMEOUT = Long.getLong("chat.server.heartbeat.idleTimeoutMillis", 45000);
+
+    /**
+     * The precision in milliseconds of the timeouts of the connections, the duration
+     * of one tick of their {@link HashedTimingWheel}.
+     */
+    public static final long TIMER_TICK = Long.getLong("chat.server.timers.tickMillis", 100);
+
+    private ServerConfig() {
+    }
+}
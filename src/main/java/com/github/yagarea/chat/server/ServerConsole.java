@@ -9,6 +9,10 @@ import com.github.yagarea.chat.shared.SharedFunctions;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -20,6 +24,11 @@ import java.util.Map;
 public class ServerConsole implements Runnable{
     private final UserReader consoleReader;
     private final Map<String, ClientConnection> clients;
+    private final BroadcastFanOut fanOut;
+    private final FileRelay fileRelay;
+    private final ServerMetrics metrics;
+    private final ClusterNode cluster;
+    private final Presence presence;
     public String wrongNick = SharedFunctions.ROSSO + "SERVER: WRONG NICKNAME" + SharedFunctions.RESET;
     
     /**
@@ -27,11 +36,16 @@ public class ServerConsole implements Runnable{
      * for managing clients. It uses a {@link UserSystemInReader} or a 
      * {@link UserConsoleReader} depending on the availability of the system console.
      *
-     * @param clients a map of currently active client connections
+     * @param context the clients and services of the server
      */
-    public ServerConsole(Map<String, ClientConnection> clients){
+    public ServerConsole(ServerContext context){
         this.consoleReader = System.console() == null ? new UserSystemInReader() : new UserConsoleReader();
-        this.clients = clients;
+        this.clients = context.getClients();
+        this.fanOut = context.getFanOut();
+        this.fileRelay = context.getFileRelay();
+        this.metrics = context.getMetrics();
+        this.cluster = context.getCluster();
+        this.presence = context.getPresence();
     }
 
     /**
@@ -62,6 +76,11 @@ public class ServerConsole implements Runnable{
      * <ul>
      *     <li>kick [client] - Kicks a specified client from the chat.</li>
      *     <li>clients - Lists all connected clients.</li>
+     *     <li>queues - Lists the clients with messages waiting to be written to them.</li>
+     *     <li>fanout - Prints the latency of broadcast fan-out.</li>
+     *     <li>transfers - Lists the file transfers in progress.</li>
+     *     <li>stats - Prints the traffic, login and latency metrics of the server.</li>
+     *     <li>cluster - Prints the links to the other nodes of the cluster.</li>
      *     <li>broadcast [message] - Sends a message to all connected clients.</li>
      *     <li>kill - Kicks all clients, deletes the Auth.txt file, and shuts down the server.</li>
      *     <li>shutdown - Shuts down the server.</li>
@@ -75,6 +94,16 @@ public class ServerConsole implements Runnable{
             kickUser(command.substring("kick ".length()));
         }else if(command.equals("clients")){
             printListOfClients();
+        }else if(command.equals("queues")){
+            printOutboundQueues();
+        }else if(command.equals("fanout")){
+            printFanOutLatency();
+        }else if(command.equals("transfers")){
+            printTransfers();
+        }else if(command.equals("stats")){
+            printStats();
+        }else if(command.equals("cluster")){
+            printCluster();
         }else if(command.startsWith("broadcast ")){
             broadcast(command.substring("broadcast ".length()));
         }else if(command.equals("kill")){
@@ -140,17 +169,27 @@ public class ServerConsole implements Runnable{
         try{
             if(clients.keySet().contains(username)){
                 clients.get(username).sendEncrypeted(SharedFunctions.ROSSO + "SERVER: You have been kicked." + SharedFunctions.RESET);
-                clients.get(username).clientSocket.close();
+                clients.get(username).closeAfterFlush();
             }else{
                 throw new NonExistentClientException(wrongNick);
             }
-        }catch(IOException e){
-            e.printStackTrace();
         }catch(NonExistentClientException e){
             System.out.println(e.getMessage());
         }
     }
 
+    /**
+     * Prints the links to the other nodes of the cluster and how many writes they took.
+     */
+    private void printCluster(){
+        if(cluster == null){
+            System.out.println(SharedFunctions.GIALLO + "Not in a cluster" + SharedFunctions.RESET);
+            return;
+        }
+        System.out.println(SharedFunctions.VERDE + "Cluster:" + SharedFunctions.RESET);
+        System.out.println(cluster.report());
+    }
+
     /**
      * Sends a private message to a specified client.
      * 
@@ -158,23 +197,67 @@ public class ServerConsole implements Runnable{
      * @param message the message to send to the client
      */
     private void printListOfClients(){
-        System.out.println(SharedFunctions.VERDE + "Active users(" + clients.size() + "):" + SharedFunctions.RESET);
-        for(String username : clients.keySet()){
+        List<String> users = presence.snapshot().getUsers();
+        System.out.println(SharedFunctions.VERDE + "Active users(" + users.size() + "):" + SharedFunctions.RESET);
+        for(String username : users){
             System.out.println("\t" + username);
         }
     }
 
+    /**
+     * Prints the clients which have frames waiting in their outbound queue,
+     * the most backed up first.
+     */
+    private void printOutboundQueues(){
+        List<ClientConnection> backedUp = new ArrayList<>();
+        for(ClientConnection cC : clients.values()){
+            if(cC.getQueueDepth() > 0){
+                backedUp.add(cC);
+            }
+        }
+        backedUp.sort(Comparator.comparingLong(ClientConnection::getQueuedBytes).reversed());
+        System.out.println(SharedFunctions.VERDE + "Outbound queues(" + backedUp.size() + " not empty):" + SharedFunctions.RESET);
+        for(ClientConnection cC : backedUp){
+            System.out.println("\t" + cC.username + " - " + cC.getQueueDepth() + " messages, " + cC.getQueuedBytes() + " bytes");
+        }
+    }
+
     /**
      * Sends a message to all connected clients.
      *
      * @param message the message to broadcast to all clients
      */
     private void broadcast(String message){
-        for(ClientConnection cC : clients.values()){
-            cC.sendEncrypeted(SharedFunctions.BLU+"SERVER: " + SharedFunctions.RESET + message);
+        fanOut.broadcast(clients.values(), null, SharedFunctions.BLU+"SERVER: " + SharedFunctions.RESET + message);
+    }
+
+    /**
+     * Prints how long broadcasts take to be encrypted and queued for all recipients.
+     */
+    private void printFanOutLatency(){
+        System.out.println(SharedFunctions.VERDE + "Broadcast fan-out (parallel from " + fanOut.getParallelThreshold() + " recipients):" + SharedFunctions.RESET);
+        System.out.println("\t" + fanOut.getLatency().summary());
+    }
+
+    /**
+     * Prints the file transfers relayed at the moment.
+     */
+    private void printTransfers(){
+        Collection<String> transfers = fileRelay.describe();
+        System.out.println(SharedFunctions.VERDE + "File transfers(" + transfers.size() + "):" + SharedFunctions.RESET);
+        for(String transfer : transfers){
+            System.out.println("\t" + transfer);
         }
     }
 
+    /**
+     * Prints the traffic, login and latency metrics of the server.
+     */
+    private void printStats(){
+        System.out.println(SharedFunctions.VERDE + "Server metrics:" + SharedFunctions.RESET);
+        System.out.println(metrics.report());
+    }
+
     /**
      * Sends a private message to a specified client.
      * 
@@ -201,6 +284,11 @@ public class ServerConsole implements Runnable{
                 "\n\tkick [client] - kicks a specified [client] from the chat" +
                 "\n\tbroadcast [message] - sends [message] to all connected clients" +
                 "\n\tclients - lists all connected clients" +
+                "\n\tqueues - lists clients with messages waiting to be written to them" +
+                "\n\tfanout - prints the latency of broadcast fan-out" +
+                "\n\ttransfers - lists file transfers in progress" +
+                "\n\tstats - prints traffic, logins and latencies of the server" +
+                "\n\tcluster - prints the links to the other nodes of the cluster" +
                 "\n\tkill - kicks clients, deletes Auth.txt and shuts server down" +
                 "\n\tshutdown - shuts down server" +
                 "\n\t@[client] [message] - sends [message] to [client]");
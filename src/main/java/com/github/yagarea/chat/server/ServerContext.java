@@ -0,0 +1,174 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.security.RSA;
+
+import java.util.Map;
+
+/**
+ * The state and services shared by every connection of one server.
+ */
+public class ServerContext {
+    private final Map<String, ClientConnection> clients;
+    private final RSA decryptor;
+    private final Authenticator authenticator;
+    private final BroadcastFanOut fanOut;
+    private final FileRelay fileRelay;
+    private final ServerMetrics metrics;
+    private final LoginExecutor loginExecutor;
+    private final MessageHistory history;
+    private final Mailboxes mailboxes;
+    private final Rooms rooms;
+    private final ClusterNode cluster;
+    private final Presence presence;
+    private final HashedTimingWheel timers;
+
+    /**
+     * Constructs a ServerContext.
+     *
+     * @param clients the map of active clients
+     * @param decryptor the RSA key pair of the server
+     * @param authenticator the authenticator used to validate the clients
+     * @param fanOut the delivery of broadcasts
+     * @param fileRelay the routes of file transfers
+     * @param metrics the counters and timers of the server
+     * @param loginExecutor the threads running logins
+     * @param history the history of broadcast messages, or null if none is kept
+     * @param mailboxes the mailboxes of offline users, or null if none are kept
+     * @param rooms the rooms of the chat
+     * @param cluster the link to the other servers of the cluster, or null if there are none
+     * @param presence the users online on this server and the other nodes
+     * @param timers the wheel running the timeouts of the connections, or null for none
+     */
+    public ServerContext(Map<String, ClientConnection> clients, RSA decryptor, Authenticator authenticator, BroadcastFanOut fanOut, FileRelay fileRelay, ServerMetrics metrics, LoginExecutor loginExecutor, MessageHistory history, Mailboxes mailboxes, Rooms rooms, ClusterNode cluster, Presence presence, HashedTimingWheel timers) {
+        this.clients = clients;
+        this.decryptor = decryptor;
+        this.authenticator = authenticator;
+        this.fanOut = fanOut;
+        this.fileRelay = fileRelay;
+        this.metrics = metrics;
+        this.loginExecutor = loginExecutor;
+        this.history = history;
+        this.mailboxes = mailboxes;
+        this.rooms = rooms;
+        this.cluster = cluster;
+        this.presence = presence;
+        this.timers = timers;
+    }
+
+    /**
+     * Returns the map of active clients, by username.
+     *
+     * @return the map of active clients, by username
+     */
+    public Map<String, ClientConnection> getClients() {
+        return clients;
+    }
+
+    /**
+     * Returns the RSA key pair of the server.
+     *
+     * @return the RSA key pair of the server
+     */
+    public RSA getDecryptor() {
+        return decryptor;
+    }
+
+    /**
+     * Returns the authenticator of the registered users.
+     *
+     * @return the authenticator of the registered users
+     */
+    public Authenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    /**
+     * Returns the delivery of broadcasts.
+     *
+     * @return the delivery of broadcasts
+     */
+    public BroadcastFanOut getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * Returns the routes of file transfers.
+     *
+     * @return the routes of file transfers
+     */
+    public FileRelay getFileRelay() {
+        return fileRelay;
+    }
+
+    /**
+     * Returns the counters and timers of the server.
+     *
+     * @return the counters and timers of the server
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the threads running logins.
+     *
+     * @return the threads running logins
+     */
+    public LoginExecutor getLoginExecutor() {
+        return loginExecutor;
+    }
+
+    /**
+     * Returns the history of broadcast messages.
+     *
+     * @return the history of broadcast messages, or null if none is kept
+     */
+    public MessageHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Returns the mailboxes of offline users.
+     *
+     * @return the mailboxes of offline users, or null if none are kept
+     */
+    public Mailboxes getMailboxes() {
+        return mailboxes;
+    }
+
+    /**
+     * Returns the rooms of the chat.
+     *
+     * @return the rooms of the chat
+     */
+    public Rooms getRooms() {
+        return rooms;
+    }
+
+    /**
+     * Returns the link to the other servers of the cluster.
+     *
+     * @return the cluster node, or null if there are no other servers
+     */
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Returns the users online on this server and the other nodes.
+     *
+     * @return the presence
+     */
+    public Presence getPresence() {
+        return presence;
+    }
+
+    /**
+     * Returns the wheel running the handshake, heartbeat and eviction timeouts.
+     *
+     * @return the timing wheel, or null if connections never time out
+     */
+    public HashedTimingWheel getTimers() {
+        return timers;
+    }
+}
@@ -0,0 +1,378 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.LatencyHistogram;
+import com.github.yagarea.chat.shared.LoginResponse;
+import com.github.yagarea.chat.shared.security.MessageCipher;
+import com.github.yagarea.chat.shared.security.RsaMessageCipher;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the traffic of the server and times its expensive operations, for the
+ * {@code stats} console command and for JMX clients such as JConsole.
+ * <p>
+ * Everything recorded on the paths of messages is a {@link LongAdder} or a
+ * {@link LatencyHistogram} with buckets striped by thread, so connection threads,
+ * event loops and fan-out workers recording at once rarely touch the same counter. Rates per second are sampled once a second by a daemon thread
+ * started with {@link #start()}; totals and latencies are read on demand.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    /** The name under which the metrics are registered with the platform MBean server. */
+    public static final String OBJECT_NAME = "com.github.yagarea.chat:type=ServerMetrics";
+
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder socketWrites = new LongAdder();
+    private final LongAdder slowConsumers = new LongAdder();
+    private final LongAdder outboundDropped = new LongAdder();
+    private final LongAdder slowConsumersEvicted = new LongAdder();
+    private final LongAdder handshakeTimeouts = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final Map<LoginResponse, LongAdder> loginAttempts = new EnumMap<>(LoginResponse.class);
+    private final LatencyHistogram rsaEncrypt = new LatencyHistogram();
+    private final LatencyHistogram rsaDecrypt = new LatencyHistogram();
+    private final LatencyHistogram aesEncrypt = new LatencyHistogram();
+    private final LatencyHistogram aesDecrypt = new LatencyHistogram();
+    private final LatencyHistogram broadcastLatency;
+    private final LatencyHistogram authenticatorWriteLatency;
+
+    private volatile double messagesInPerSecond;
+    private volatile double messagesOutPerSecond;
+    private volatile double bytesInPerSecond;
+    private volatile double bytesOutPerSecond;
+    private volatile double socketWritesPerSecond;
+
+    /**
+     * Constructs the metrics of a server.
+     *
+     * @param fanOut the delivery of broadcasts, whose latency is reported
+     * @param authenticator the authenticator, whose write latency is reported, or null
+     */
+    public ServerMetrics(BroadcastFanOut fanOut, Authenticator authenticator) {
+        for (LoginResponse response : LoginResponse.values()) {
+            loginAttempts.put(response, new LongAdder());
+        }
+        this.broadcastLatency = fanOut.getLatency();
+        this.authenticatorWriteLatency = authenticator == null ? new LatencyHistogram() : authenticator.getWriteLatency();
+    }
+
+    /**
+     * Starts sampling the rates per second.
+     */
+    public void start() {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "server-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(new Runnable() {
+            private long lastTime = System.nanoTime();
+            private long lastMessagesIn;
+            private long lastMessagesOut;
+            private long lastBytesIn;
+            private long lastBytesOut;
+            private long lastSocketWrites;
+
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                double seconds = (now - lastTime) / 1e9;
+                long nowMessagesIn = messagesIn.sum();
+                long nowMessagesOut = messagesOut.sum();
+                long nowBytesIn = bytesIn.sum();
+                long nowBytesOut = bytesOut.sum();
+                long nowSocketWrites = socketWrites.sum();
+                messagesInPerSecond = (nowMessagesIn - lastMessagesIn) / seconds;
+                messagesOutPerSecond = (nowMessagesOut - lastMessagesOut) / seconds;
+                bytesInPerSecond = (nowBytesIn - lastBytesIn) / seconds;
+                bytesOutPerSecond = (nowBytesOut - lastBytesOut) / seconds;
+                socketWritesPerSecond = (nowSocketWrites - lastSocketWrites) / seconds;
+                lastTime = now;
+                lastMessagesIn = nowMessagesIn;
+                lastMessagesOut = nowMessagesOut;
+                lastBytesIn = nowBytesIn;
+                lastBytesOut = nowBytesOut;
+                lastSocketWrites = nowSocketWrites;
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as {@link #OBJECT_NAME}.
+     *
+     * @throws JMException if the metrics cannot be registered, e.g. when they already are
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    void messageIn(int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    void messagesOut(int count, int bytes) {
+        messagesOut.add(count);
+        bytesOut.add(bytes);
+    }
+
+    void socketWrite() {
+        socketWrites.increment();
+    }
+
+    void slowConsumer() {
+        slowConsumers.increment();
+    }
+
+    void outboundDropped() {
+        outboundDropped.increment();
+    }
+
+    void slowConsumerEvicted() {
+        slowConsumersEvicted.increment();
+    }
+
+    void handshakeTimeout() {
+        handshakeTimeouts.increment();
+    }
+
+    void idleTimeout() {
+        idleTimeouts.increment();
+    }
+
+    void loginAttempt(LoginResponse response) {
+        loginAttempts.get(response).increment();
+    }
+
+    void rsaEncrypted(long nanos) {
+        rsaEncrypt.record(nanos);
+    }
+
+    /**
+     * Wraps a cipher so that its encryptions and decryptions are timed, as RSA or AES
+     * depending on the cipher.
+     *
+     * @param cipher the cipher of a session
+     * @return the timed cipher
+     */
+    MessageCipher timed(MessageCipher cipher) {
+        if (cipher instanceof RsaMessageCipher) {
+            return new TimedCipher(cipher, rsaEncrypt, rsaDecrypt);
+        }
+        return new TimedCipher(cipher, aesEncrypt, aesDecrypt);
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    @Override
+    public double getBytesInPerSecond() {
+        return bytesInPerSecond;
+    }
+
+    @Override
+    public double getBytesOutPerSecond() {
+        return bytesOutPerSecond;
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    @Override
+    public double getSocketWritesPerSecond() {
+        return socketWritesPerSecond;
+    }
+
+    @Override
+    public long getSlowConsumers() {
+        return slowConsumers.sum();
+    }
+
+    @Override
+    public long getOutboundDropped() {
+        return outboundDropped.sum();
+    }
+
+    @Override
+    public long getSlowConsumersEvicted() {
+        return slowConsumersEvicted.sum();
+    }
+
+    @Override
+    public long getHandshakeTimeouts() {
+        return handshakeTimeouts.sum();
+    }
+
+    @Override
+    public long getIdleTimeouts() {
+        return idleTimeouts.sum();
+    }
+
+    @Override
+    public Map<String, Long> getLoginAttempts() {
+        Map<String, Long> attempts = new LinkedHashMap<>();
+        for (Map.Entry<LoginResponse, LongAdder> entry : loginAttempts.entrySet()) {
+            attempts.put(entry.getKey().name(), entry.getValue().sum());
+        }
+        return attempts;
+    }
+
+    @Override
+    public LatencyStats getRsaEncryptLatency() {
+        return LatencyStats.of(rsaEncrypt);
+    }
+
+    @Override
+    public LatencyStats getRsaDecryptLatency() {
+        return LatencyStats.of(rsaDecrypt);
+    }
+
+    @Override
+    public LatencyStats getAesEncryptLatency() {
+        return LatencyStats.of(aesEncrypt);
+    }
+
+    @Override
+    public LatencyStats getAesDecryptLatency() {
+        return LatencyStats.of(aesDecrypt);
+    }
+
+    @Override
+    public LatencyStats getBroadcastLatency() {
+        return LatencyStats.of(broadcastLatency);
+    }
+
+    @Override
+    public LatencyStats getAuthenticatorWriteLatency() {
+        return LatencyStats.of(authenticatorWriteLatency);
+    }
+
+    /**
+     * Builds the report printed by the {@code stats} console command.
+     *
+     * @return the report, one metric per line
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("\tconnections: ").append(getActiveConnections());
+        report.append(String.format("%n\tmessages in: %d (%.1f/s), out: %d (%.1f/s)",
+                getMessagesIn(), messagesInPerSecond, getMessagesOut(), messagesOutPerSecond));
+        report.append(String.format("%n\tbytes in: %d (%.1f KiB/s), out: %d (%.1f KiB/s)",
+                getBytesIn(), bytesInPerSecond / 1024, getBytesOut(), bytesOutPerSecond / 1024));
+        long writes = getSocketWrites();
+        report.append(String.format("%n\tsocket writes: %d (%.1f/s), %.2f messages per write",
+                writes, socketWritesPerSecond, writes == 0 ? 0.0 : (double) getMessagesOut() / writes));
+        report.append(String.format("%n\tslow consumers: %d, messages dropped: %d, disconnected: %d",
+                getSlowConsumers(), getOutboundDropped(), getSlowConsumersEvicted()));
+        report.append(String.format("%n\ttimeouts: handshake or login %d, idle %d", getHandshakeTimeouts(), getIdleTimeouts()));
+        report.append("\n\tlogins: ").append(getLoginAttempts());
+        report.append("\n\trsa encrypt: ").append(rsaEncrypt.summary());
+        report.append("\n\trsa decrypt: ").append(rsaDecrypt.summary());
+        report.append("\n\taes encrypt: ").append(aesEncrypt.summary());
+        report.append("\n\taes decrypt: ").append(aesDecrypt.summary());
+        report.append("\n\tbroadcast fan-out: ").append(broadcastLatency.summary());
+        report.append("\n\tauthenticator writes: ").append(authenticatorWriteLatency.summary());
+        return report.toString();
+    }
+
+    /**
+     * Records the time spent in every call of a cipher.
+     */
+    private static class TimedCipher implements MessageCipher {
+        private final MessageCipher cipher;
+        private final LatencyHistogram encryptLatency;
+        private final LatencyHistogram decryptLatency;
+
+        TimedCipher(MessageCipher cipher, LatencyHistogram encryptLatency, LatencyHistogram decryptLatency) {
+            this.cipher = cipher;
+            this.encryptLatency = encryptLatency;
+            this.decryptLatency = decryptLatency;
+        }
+
+        @Override
+        public byte[] encrypt(byte[] plaintext) {
+            long start = System.nanoTime();
+            byte[] ciphertext = cipher.encrypt(plaintext);
+            encryptLatency.record(System.nanoTime() - start);
+            return ciphertext;
+        }
+
+        @Override
+        public byte[] decrypt(byte[] ciphertext) {
+            long start = System.nanoTime();
+            byte[] plaintext = cipher.decrypt(ciphertext);
+            decryptLatency.record(System.nanoTime() - start);
+            return plaintext;
+        }
+
+        @Override
+        public String encryptString(String message) {
+            long start = System.nanoTime();
+            String encrypted = cipher.encryptString(message);
+            encryptLatency.record(System.nanoTime() - start);
+            return encrypted;
+        }
+
+        @Override
+        public String decryptString(String encryptedMessage) {
+            long start = System.nanoTime();
+            String message = cipher.decryptString(encryptedMessage);
+            decryptLatency.record(System.nanoTime() - start);
+            return message;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.yagarea.chat.server;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link ServerMetrics}, registered as
+ * {@value ServerMetrics#OBJECT_NAME}. Counters are totals since the start of the
+ * server, rates are measured over the last second.
+ */
+public interface ServerMetricsMXBean {
+
+    long getActiveConnections();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    double getBytesInPerSecond();
+
+    double getBytesOutPerSecond();
+
+    long getSocketWrites();
+
+    double getSocketWritesPerSecond();
+
+    /**
+     * Returns how many times a client fell behind its low watermark of queued bytes.
+     *
+     * @return the number of slow consumer events
+     */
+    long getSlowConsumers();
+
+    long getOutboundDropped();
+
+    long getSlowConsumersEvicted();
+
+    long getHandshakeTimeouts();
+
+    long getIdleTimeouts();
+
+    /**
+     * Returns the number of login attempts by {@link com.github.yagarea.chat.shared.LoginResponse}.
+     *
+     * @return the login attempts by outcome
+     */
+    Map<String, Long> getLoginAttempts();
+
+    LatencyStats getRsaEncryptLatency();
+
+    LatencyStats getRsaDecryptLatency();
+
+    LatencyStats getAesEncryptLatency();
+
+    LatencyStats getAesDecryptLatency();
+
+    LatencyStats getBroadcastLatency();
+
+    LatencyStats getAuthenticatorWriteLatency();
+}
@@ -0,0 +1,132 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.Frame;
+import com.github.yagarea.chat.shared.FrameReader;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A {@link ClientConnection} backed by a blocking {@link Socket}.
+ * The thread calling {@link #startListenig()} is dedicated to this client for the
+ * whole lifetime of the connection and blocks while waiting for the next line or frame.
+ * A second, dedicated writer thread drains the outbound queue to the socket, so
+ * senders never wait for this client to read.
+ * <p>
+ * The writer copies every frame queued meanwhile into a buffer of
+ * {@link ServerConfig#FLUSH_BYTES} bytes and only flushes it once the queue is empty,
+ * so a burst of messages leaves in a few large writes instead of one write each. With
+ * {@link ServerConfig#FLUSH_DELAY_MICROS}, a writer which flushed shortly before also
+ * waits that long for more output; after a pause, a message is flushed at once.
+ */
+public class SocketClientConnection extends ClientConnection {
+    private final OutputStream socketWriter;
+    private final FrameReader socketReader;
+    private final Thread writerThread;
+    protected final Socket clientSocket;
+
+    /**
+     * Constructs a SocketClientConnection instance.
+     *
+     * @param clientSocket the socket connected to the client
+     * @param context the clients, keys and services of the server
+     * @param writerThreads the factory of the thread writing to the client
+     * @throws IOException if an I/O error occurs when creating input/output streams
+     */
+    SocketClientConnection(Socket clientSocket, ServerContext context, ThreadFactory writerThreads) throws IOException {
+        super(context);
+        this.socketReader = new FrameReader(clientSocket.getInputStream());
+        this.socketWriter = new BufferedOutputStream(clientSocket.getOutputStream(), ServerConfig.FLUSH_BYTES);
+        this.clientSocket = clientSocket;
+        this.writerThread = writerThreads.newThread(this::writeLoop);
+    }
+
+    /**
+     * Runs the handshake and then keeps reading lines or frames from the client until
+     * the connection is closed.
+     */
+    public void startListenig() {
+        writerThread.start();
+        open();
+        try {
+            while (true) {
+                if (isBinaryFrames()) {
+                    Frame frame = socketReader.readFrame();
+                    if (frame == null) {
+                        disconnect();
+                        break;
+                    }
+                    onFrame(frame);
+                } else {
+                    String clientData = socketReader.readLine();
+                    if (clientData == null) {
+                        disconnect();
+                        break;
+                    }
+                    onLine(clientData);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Writes queued frames to the socket until the connection is closed, flushing
+     * whenever the queue runs empty.
+     */
+    private void writeLoop() {
+        long delay = TimeUnit.MICROSECONDS.toNanos(ServerConfig.FLUSH_DELAY_MICROS);
+        long lastFlush = System.nanoTime() - delay;
+        try {
+            byte[] frame = outbound.take();
+            while (true) {
+                if (frame == OutboundQueue.CLOSE) {
+                    socketWriter.flush();
+                    disconnect();
+                    return;
+                }
+                socketWriter.write(frame);
+                frame = outbound.poll();
+                if (frame == null && delay > 0 && System.nanoTime() - lastFlush < delay) {
+                    frame = outbound.poll(delay, TimeUnit.NANOSECONDS);
+                }
+                if (frame == null) {
+                    socketWriter.flush();
+                    getMetrics().socketWrite();
+                    lastFlush = System.nanoTime();
+                    frame = outbound.take();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * The writer thread is always waiting on the queue, nothing to wake up.
+     */
+    @Override
+    protected void onQueued() {
+    }
+
+    /**
+     * Closes the client socket, which also terminates the reading loop, and stops
+     * the writer thread.
+     */
+    @Override
+    public void close() {
+        writerThread.interrupt();
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.yagarea.chat.shared;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A frame of the binary wire format negotiated with {@link Handshake#BINARY}:
+ * a 4 byte big-endian length, followed by a 1 byte type and the payload. The length
+ * counts the type and the payload. Messages travel as raw ciphertext bytes instead of
+ * the decimal or Base64 text of the line based format.
+ * <p>
+ * A frame keeps the bytes it was read as, so it can be forwarded to another client
+ * without being encoded again.
+ */
+public class Frame {
+    /**
+     * A chat message encrypted with the session cipher.
+     */
+    public static final byte MESSAGE = 1;
+    /**
+     * A file transfer control line encrypted with the session cipher, see {@code FileTransfers}.
+     */
+    public static final byte TRANSFER = 2;
+    /**
+     * A chunk of a file transfer: the transfer id as a long, followed by the chunk
+     * encrypted with the key of the transfer. The server forwards it as it is.
+     */
+    public static final byte CHUNK = 3;
+    /**
+     * A heartbeat sent by the server to a client which has been quiet, with an empty
+     * payload, see {@link Handshake#HEARTBEAT}.
+     */
+    public static final byte PING = 4;
+    /**
+     * The answer of the client to a {@link #PING}, with an empty payload.
+     */
+    public static final byte PONG = 5;
+    public static final int HEADER_LENGTH = 5;
+    public static final int MAX_LENGTH = 1 << 20;
+
+    private final byte[] bytes;
+
+    /**
+     * Constructs a frame from its wire format.
+     *
+     * @param bytes the header followed by the payload
+     */
+    public Frame(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Returns the type of the frame.
+     *
+     * @return the type
+     */
+    public byte getType() {
+        return bytes[Integer.BYTES];
+    }
+
+    /**
+     * Returns a copy of the payload of the frame.
+     *
+     * @return the payload
+     */
+    public byte[] getPayload() {
+        return Arrays.copyOfRange(bytes, HEADER_LENGTH, bytes.length);
+    }
+
+    /**
+     * Returns a read-only view of the payload of the frame, without copying it.
+     *
+     * @return the payload
+     */
+    public ByteBuffer payloadBuffer() {
+        return ByteBuffer.wrap(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the wire format of the frame. The array is not copied and must not be modified.
+     *
+     * @return the header followed by the payload
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Encodes a frame to its wire format.
+     *
+     * @param type the type of the frame
+     * @param payload the payload of the frame
+     * @return the header followed by the payload
+     */
+    public static byte[] encode(byte type, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        frame.putInt(payload.length + 1);
+        frame.put(type);
+        frame.put(payload);
+        return frame.array();
+    }
+
+    /**
+     * Checks the length read from a frame header.
+     *
+     * @param length the length of the type and the payload
+     * @throws IllegalArgumentException if the length is out of bounds
+     */
+    public static void checkLength(int length) {
+        if (length < 1 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Invalid frame length " + length);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.yagarea.chat.shared;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads from a blocking stream both the lines of the handshake and line based protocol,
+ * and the {@link Frame}s of the binary protocol. Both share one buffer, so the reader
+ * can switch from lines to frames in the middle of the stream.
+ */
+public class FrameReader {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final DataInputStream input;
+
+    /**
+     * Constructs a FrameReader.
+     *
+     * @param input the stream to read from
+     */
+    public FrameReader(InputStream input) {
+        this.input = new DataInputStream(new BufferedInputStream(input));
+    }
+
+    /**
+     * Reads a line terminated by {@code \n} or {@code \r\n}.
+     *
+     * @return the line without its terminator, or null at the end of the stream
+     * @throws IOException if an I/O error occurs or the line is too long
+     */
+    public String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            int b = input.read();
+            if (b == -1) {
+                return line.size() == 0 ? null : decode(line);
+            }
+            if (b == '\n') {
+                return decode(line);
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+            line.write(b);
+        }
+    }
+
+    /**
+     * Reads a binary frame.
+     *
+     * @return the frame, or null at the end of the stream
+     * @throws IOException if an I/O error occurs or the frame is malformed
+     */
+    public Frame readFrame() throws IOException {
+        int length;
+        try {
+            length = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        try {
+            Frame.checkLength(length);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        byte[] bytes = new byte[Integer.BYTES + length];
+        ByteBuffer.wrap(bytes).putInt(length);
+        input.readFully(bytes, Integer.BYTES, length);
+        return new Frame(bytes);
+    }
+
+    private static String decode(ByteArrayOutputStream line) {
+        String decoded = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return decoded.endsWith("\r") ? decoded.substring(0, decoded.length() - 1) : decoded;
+    }
+}
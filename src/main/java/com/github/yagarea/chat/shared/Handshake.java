@@ -0,0 +1,139 @@
+package com.github.yagarea.chat.shared;
+
+import com.github.yagarea.chat.shared.security.AesGcmCipher;
+import com.github.yagarea.chat.shared.security.RSA;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The lines exchanged to negotiate the protocol version after the RSA public keys.
+ * <p>
+ * Version 1 clients send their encrypted username right after their public key, and
+ * every message stays RSA encrypted. Version 2 clients first send
+ * {@code HELLO 2 [features]}; the server answers {@code WELCOME 2 <key> [features]},
+ * where {@code key} is a fresh AES session key encrypted with the client's RSA public
+ * key, and all further messages are encrypted with {@link AesGcmCipher}. A
+ * {@code HELLO} line can never be mistaken for an RSA ciphertext, which is always a
+ * decimal number.
+ * <p>
+ * Features are optional protocol extensions, offered by the client as a comma
+ * separated list and echoed back by the server for those it accepts. Accepted
+ * features apply to everything sent after the welcome line.
+ */
+public final class Handshake {
+    public static final int LEGACY_VERSION = 1;
+    public static final int VERSION = 2;
+    public static final String HELLO = "HELLO";
+    public static final String WELCOME = "WELCOME";
+
+    /**
+     * Feature switching both directions from lines to length-prefixed {@link Frame}s.
+     */
+    public static final String BINARY = "binary";
+
+    /**
+     * Feature compressing long messages both ways before they are encrypted, see
+     * {@link com.github.yagarea.chat.shared.security.CompressingCipher}.
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Feature letting the server probe quiet clients: it sends {@link #PING} and the
+     * client answers {@link #PONG}, as {@link Frame#PING} and {@link Frame#PONG} frames
+     * on binary sessions. Neither line can be mistaken for a ciphertext.
+     */
+    public static final String HEARTBEAT = "heartbeat";
+    public static final String PING = "PING";
+    public static final String PONG = "PONG";
+
+    private Handshake() {
+    }
+
+    /**
+     * Builds the line a client sends to ask for the current protocol version.
+     *
+     * @param features the features offered by the client
+     * @return the hello line
+     */
+    public static String hello(Collection<String> features) {
+        return withFeatures(HELLO + " " + VERSION, features);
+    }
+
+    /**
+     * Checks whether a line received by the server is a hello line.
+     *
+     * @param line the line received after the client's public key
+     * @return true if the client asks for protocol version 2 or newer
+     */
+    public static boolean isHello(String line) {
+        return line.startsWith(HELLO + " ");
+    }
+
+    /**
+     * Returns the features offered in a hello line.
+     *
+     * @param line the hello line
+     * @return the offered features
+     */
+    public static Set<String> offeredFeatures(String line) {
+        return features(line, 2);
+    }
+
+    /**
+     * Builds the answer to a hello line, carrying the session key.
+     *
+     * @param sessionCipher the session cipher generated for the client
+     * @param clientKey the RSA public key of the client
+     * @param features the features accepted by the server
+     * @return the welcome line
+     */
+    public static String welcome(AesGcmCipher sessionCipher, RSA clientKey, Collection<String> features) {
+        String encodedKey = Base64.getEncoder().encodeToString(sessionCipher.getKey());
+        return withFeatures(WELCOME + " " + VERSION + " " + clientKey.encryptString(encodedKey), features);
+    }
+
+    /**
+     * Extracts the session cipher from a welcome line.
+     *
+     * @param line the line received from the server
+     * @param decryptor the RSA key pair of the client
+     * @return the session cipher
+     * @throws IllegalArgumentException if the line is not a valid welcome line
+     */
+    public static AesGcmCipher readWelcome(String line, RSA decryptor) {
+        String[] parts = line == null ? new String[0] : line.split(" ");
+        if (parts.length < 3 || !parts[0].equals(WELCOME)) {
+            throw new IllegalArgumentException("Server does not support protocol version " + VERSION);
+        }
+        String encodedKey = decryptor.decryptString(parts[2]);
+        return new AesGcmCipher(Base64.getDecoder().decode(encodedKey.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * Returns the features accepted in a welcome line.
+     *
+     * @param line the welcome line
+     * @return the accepted features
+     */
+    public static Set<String> acceptedFeatures(String line) {
+        return features(line, 3);
+    }
+
+    private static String withFeatures(String line, Collection<String> features) {
+        return features.isEmpty() ? line : line + " " + String.join(",", features);
+    }
+
+    private static Set<String> features(String line, int index) {
+        String[] parts = line.split(" ");
+        if (parts.length <= index) {
+            return Collections.emptySet();
+        }
+        return new LinkedHashSet<>(Arrays.asList(parts[index].split(",")));
+    }
+}
@@ -8,5 +8,12 @@ public enum LoginResponse {
     PASSWORD_INVALID,
     REGISTERED,
     INVALID_USERNAME,
-    ALREADY_LOGGED_IN
+    ALREADY_LOGGED_IN,
+    /**
+     * The server has too many logins to process; sent as {@code SERVER_BUSY:<ms>}, where
+     * {@code ms} is the delay after which the client should log in again. Only sent under
+     * protocol version 2: the server closes version 1 connections instead, as the
+     * original client does not know this answer.
+     */
+    SERVER_BUSY
 }
@@ -0,0 +1,65 @@
+package com.github.yagarea.chat.shared;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads which run blocking client connections.
+ * <p>
+ * Virtual threads need Java 21. The default build targets Java 1.8, so the virtual
+ * thread factory lives in {@code src/main/java21} and is only compiled by the
+ * {@code virtual-threads} Maven profile. When it is missing from the classpath,
+ * {@link #forMode(String, String)} falls back to platform threads.
+ */
+public final class ThreadFactories {
+    private static final String VIRTUAL_THREAD_FACTORY = "com.github.yagarea.chat.shared.VirtualThreadFactory";
+
+    private ThreadFactories() {
+    }
+
+    /**
+     * Returns a thread factory for the given mode.
+     *
+     * @param mode {@code platform} or {@code virtual}
+     * @param namePrefix the prefix of the names of the created threads
+     * @return the thread factory, platform based if virtual threads are not available
+     */
+    public static ThreadFactory forMode(String mode, String namePrefix) {
+        if (mode.equals("virtual")) {
+            ThreadFactory virtual = virtual(namePrefix);
+            if (virtual != null) {
+                return virtual;
+            }
+            System.err.println(SharedFunctions.ROSSO + "Virtual threads are not available in this build, "
+                    + "rebuild with -Pvirtual-threads and run on Java 21+" + SharedFunctions.RESET);
+        }
+        return platform(namePrefix);
+    }
+
+    /**
+     * Returns a factory of named platform threads.
+     *
+     * @param namePrefix the prefix of the names of the created threads
+     * @return the thread factory
+     */
+    public static ThreadFactory platform(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> new Thread(runnable, namePrefix + counter.getAndIncrement());
+    }
+
+    /**
+     * Returns a factory of virtual threads.
+     *
+     * @param namePrefix the prefix of the names of the created threads
+     * @return the thread factory, or null if this build or JVM does not support virtual threads
+     */
+    public static ThreadFactory virtual(String namePrefix) {
+        try {
+            return (ThreadFactory) Class.forName(VIRTUAL_THREAD_FACTORY)
+                    .getConstructor(String.class)
+                    .newInstance(namePrefix);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
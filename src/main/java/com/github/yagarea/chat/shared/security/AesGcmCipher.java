@@ -0,0 +1,121 @@
+package com.github.yagarea.chat.shared.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Symmetric session cipher agreed on during the handshake of protocol version 2.
+ * Every message is sealed with AES-GCM under a fresh random IV and sent as
+ * Base64 of {@code IV || ciphertext || tag}, so it is both confidential and
+ * authenticated, and has no length limit.
+ */
+public class AesGcmCipher implements MessageCipher {
+    public static final int KEY_LENGTH_BITS = 128;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+        }
+    });
+
+    private final SecretKey key;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Constructs a cipher from an existing session key.
+     *
+     * @param key the raw AES key
+     */
+    public AesGcmCipher(byte[] key) {
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * Generates a cipher with a fresh random session key.
+     *
+     * @return the new cipher
+     */
+    public static AesGcmCipher generate() {
+        try {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(KEY_LENGTH_BITS, new SecureRandom());
+            return new AesGcmCipher(keyGenerator.generateKey().getEncoded());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES is not available", e);
+        }
+    }
+
+    /**
+     * Returns the raw session key, to be sent to the peer under RSA.
+     *
+     * @return the raw AES key
+     */
+    public byte[] getKey() {
+        return key.getEncoded();
+    }
+
+    /**
+     * Seals bytes under a fresh IV.
+     *
+     * @param plaintext the bytes to encrypt
+     * @return {@code IV || ciphertext || tag}
+     */
+    @Override
+    public byte[] encrypt(byte[] plaintext) {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+            byte[] sealed = new byte[IV_LENGTH + cipher.getOutputSize(plaintext.length)];
+            System.arraycopy(iv, 0, sealed, 0, IV_LENGTH);
+            cipher.doFinal(plaintext, 0, plaintext.length, sealed, IV_LENGTH);
+            return sealed;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot encrypt message", e);
+        }
+    }
+
+    /**
+     * Opens bytes sealed by {@link #encrypt(byte[])}.
+     *
+     * @param sealed {@code IV || ciphertext || tag}
+     * @return the decrypted bytes
+     * @throws IllegalArgumentException if the bytes are malformed or were tampered with
+     */
+    @Override
+    public byte[] decrypt(byte[] sealed) {
+        if (sealed.length < IV_LENGTH + TAG_LENGTH_BITS / 8) {
+            throw new IllegalArgumentException("Message too short");
+        }
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, Arrays.copyOf(sealed, IV_LENGTH)));
+            return cipher.doFinal(sealed, IV_LENGTH, sealed.length - IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Cannot decrypt message", e);
+        }
+    }
+
+    @Override
+    public String encryptString(String message) {
+        return Base64.getEncoder().encodeToString(encrypt(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public String decryptString(String encryptedMessage) {
+        return new String(decrypt(Base64.getDecoder().decode(encryptedMessage)), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,153 @@
+package com.github.yagarea.chat.shared.security;
+
+import com.github.yagarea.chat.shared.Frame;
+import com.github.yagarea.chat.shared.Handshake;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses messages before they are encrypted by another cipher, once the
+ * {@link Handshake#DEFLATE} feature has been negotiated.
+ * <p>
+ * Every plaintext gets a one byte prefix: {@link #STORED} for messages sent as they
+ * are, {@link #DEFLATED} for messages compressed with raw deflate and the preset
+ * {@link #DICTIONARY}. The dictionary holds the ANSI colour codes and the phrases the
+ * server repeats, so even a single line compresses well. Only messages of at least the
+ * threshold are compressed, and only kept compressed if that made them smaller; the
+ * threshold is up to the sender, the receiver reads both forms.
+ */
+public class CompressingCipher implements MessageCipher {
+    public static final byte STORED = 0;
+    public static final byte DEFLATED = 1;
+
+    /**
+     * The preset dictionary, the most common strings last, where deflate finds them
+     * at the shortest distance.
+     */
+    static final byte[] DICTIONARY = ("the you and that have this for not with but what are was just can"
+            + " IS OFFLINE, THE MESSAGE WILL BE DELIVERED ON LOGIN COULD NOT BE STORED IS FULL"
+            + " MESSAGE(S) RECEIVED WHILE OFFLINE--- HISTORY ------ END OF HISTORY ---"
+            + "YOU ARE NOW IN #lobby ONLINE USERS: PAGE \t"
+            + " has left this chatting room has disconnected this chatting room"
+            + "\u001B[36m\u001B[35m\u001B[32m\u001B[31mPRIVATE \u001B[34mSERVER: \u001B[33m"
+            + "\u001B[0m has joined this chatting room\u001B[0m: ").getBytes(StandardCharsets.UTF_8);
+
+    private static final int MAX_INFLATED = Frame.MAX_LENGTH;
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(
+            () -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final MessageCipher cipher;
+    private final int threshold;
+
+    /**
+     * Constructs a cipher compressing messages before another one encrypts them.
+     *
+     * @param cipher the cipher of the session
+     * @param threshold the size in bytes from which messages are compressed
+     */
+    public CompressingCipher(MessageCipher cipher, int threshold) {
+        this.cipher = cipher;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext) {
+        return cipher.encrypt(compress(plaintext, threshold));
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext) {
+        return decompress(cipher.decrypt(ciphertext));
+    }
+
+    @Override
+    public String encryptString(String message) {
+        return Base64.getEncoder().encodeToString(encrypt(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public String decryptString(String encryptedMessage) {
+        return new String(decrypt(Base64.getDecoder().decode(encryptedMessage)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Prefixes a message with its form, compressing it if it is long enough and
+     * compresses at all.
+     *
+     * @param plaintext the message
+     * @param threshold the size in bytes from which the message is compressed
+     * @return the form followed by the message
+     */
+    static byte[] compress(byte[] plaintext, int threshold) {
+        if (plaintext.length >= threshold && plaintext.length > 1) {
+            Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(plaintext);
+            deflater.finish();
+            byte[] deflated = new byte[plaintext.length];
+            deflated[0] = DEFLATED;
+            int length = 1;
+            while (!deflater.finished() && length < deflated.length) {
+                length += deflater.deflate(deflated, length, deflated.length - length);
+            }
+            if (deflater.finished()) {
+                return Arrays.copyOf(deflated, length);
+            }
+        }
+        byte[] stored = new byte[plaintext.length + 1];
+        stored[0] = STORED;
+        System.arraycopy(plaintext, 0, stored, 1, plaintext.length);
+        return stored;
+    }
+
+    /**
+     * Restores a message prefixed by {@link #compress(byte[], int)}.
+     *
+     * @param packed the form followed by the message
+     * @return the message
+     * @throws IllegalArgumentException if the form is unknown, the deflated data is
+     *         corrupt or inflates to more than a frame can hold
+     */
+    static byte[] decompress(byte[] packed) {
+        if (packed.length == 0) {
+            throw new IllegalArgumentException("Message too short");
+        }
+        if (packed[0] == STORED) {
+            return Arrays.copyOfRange(packed, 1, packed.length);
+        }
+        if (packed[0] != DEFLATED) {
+            throw new IllegalArgumentException("Unknown message form " + packed[0]);
+        }
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(packed, 1, packed.length - 1);
+        byte[] inflated = new byte[Math.min(MAX_INFLATED, Math.max(64, packed.length * 4))];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == inflated.length) {
+                    if (length == MAX_INFLATED) {
+                        throw new IllegalArgumentException("Message too long");
+                    }
+                    inflated = Arrays.copyOf(inflated, Math.min(MAX_INFLATED, length * 2));
+                }
+                int inflatedNow = inflater.inflate(inflated, length, inflated.length - length);
+                if (inflatedNow == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated message");
+                }
+                length += inflatedNow;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt message", e);
+        }
+        return Arrays.copyOf(inflated, length);
+    }
+}
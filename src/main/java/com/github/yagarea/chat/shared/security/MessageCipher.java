@@ -0,0 +1,43 @@
+package com.github.yagarea.chat.shared.security;
+
+/**
+ * Encrypts the messages sent to a peer and decrypts the messages received from it.
+ * Encrypted strings are printable and never contain a line separator, so they can be
+ * sent as single lines; encrypted bytes are meant for binary frames.
+ */
+public interface MessageCipher {
+
+    /**
+     * Encrypts bytes for the peer.
+     *
+     * @param plaintext the bytes to encrypt
+     * @return the raw ciphertext
+     */
+    byte[] encrypt(byte[] plaintext);
+
+    /**
+     * Decrypts bytes received from the peer.
+     *
+     * @param ciphertext the raw ciphertext
+     * @return the decrypted bytes
+     * @throws IllegalArgumentException if the bytes cannot be decrypted
+     */
+    byte[] decrypt(byte[] ciphertext);
+
+    /**
+     * Encrypts a message for the peer.
+     *
+     * @param message the plain text message
+     * @return the encrypted message
+     */
+    String encryptString(String message);
+
+    /**
+     * Decrypts a message received from the peer.
+     *
+     * @param encryptedMessage the encrypted message
+     * @return the plain text message
+     * @throws IllegalArgumentException if the message cannot be decrypted
+     */
+    String decryptString(String encryptedMessage);
+}
@@ -1,30 +1,228 @@
 package com.github.yagarea.chat.shared.security;
 
 import java.math.BigInteger;
+import java.security.SecureRandom;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Textbook RSA over {@link BigInteger}s, used for the key exchange and by clients of
+ * protocol version 1 for every message.
+ * <p>
+ * Key pairs are generated with a configurable modulus size and public exponent policy,
+ * see {@link #DEFAULT_BITS} and {@link #DEFAULT_EXPONENT}. With the default
+ * {@link ExponentPolicy#F4} the public exponent is 65537, so encrypting costs 17 modular
+ * multiplications, and decryption uses the Chinese Remainder Theorem with the
+ * precomputed {@code dP}, {@code dQ} and {@code qInv}, working modulo the two half size
+ * primes instead of {@code n}. The wire format does not depend on the policy: a public
+ * key is still sent as {@code e} and {@code n}, and peers with keys of any policy
+ * understand each other.
+ */
 public class RSA {
 
+    /**
+     * The size in bits of the modulus of generated key pairs, set with the
+     * {@code chat.rsa.bits} system property.
+     */
+    public static final int DEFAULT_BITS = Integer.getInteger("chat.rsa.bits", 2048);
+
+    /**
+     * The exponent policy of generated key pairs, set with the {@code chat.rsa.exponent}
+     * system property to {@code f4} or {@code legacy}.
+     */
+    public static final ExponentPolicy DEFAULT_EXPONENT = ExponentPolicy.valueOf(System.getProperty("chat.rsa.exponent", "f4").toUpperCase());
+
+    /**
+     * The number of threads searching for primes when a key pair is generated by
+     * {@link #generate(int, ExponentPolicy, int)}, set with the {@code chat.rsa.threads}
+     * system property.
+     */
+    public static final int DEFAULT_THREADS = Integer.getInteger("chat.rsa.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+    private static final BigInteger F4 = BigInteger.valueOf(65537);
+
+    /**
+     * How the exponents of a key pair are chosen.
+     */
+    public enum ExponentPolicy {
+        /**
+         * The public exponent is 65537 and the private one is derived from it.
+         */
+        F4,
+        /**
+         * The private exponent is the smallest integer coprime to lambda and the public one
+         * is derived from it, as the original implementation did. Makes encryption as slow as
+         * a full size exponentiation; kept to compare with {@link #F4}.
+         */
+        LEGACY
+    }
+
     private BigInteger n;
     private BigInteger e;
     private BigInteger d;
+    private BigInteger p;
+    private BigInteger q;
+    private BigInteger dP;
+    private BigInteger dQ;
+    private BigInteger qInv;
 
+    /**
+     * Generates a key pair of {@link #DEFAULT_BITS} bits with the {@link #DEFAULT_EXPONENT} policy.
+     */
     public RSA() {
-        Random random = new Random();
-        BigInteger p = new BigInteger(512, 30, random);
-        BigInteger q = new BigInteger(512, 30, random);
-        BigInteger lambda = lcm(p.subtract(BigInteger.ONE), q.subtract(BigInteger.ONE));
+        this(DEFAULT_BITS, DEFAULT_EXPONENT);
+    }
 
-        this.n = p.multiply(q);
-        this.d = comprime(lambda);
-        this.e = d.modInverse(lambda);
+    /**
+     * Generates a key pair.
+     *
+     * @param bits the size of the modulus in bits
+     * @param policy how the exponents are chosen
+     */
+    public RSA(int bits, ExponentPolicy policy) {
+        this(bits, policy, new SecureRandom());
+    }
+
+    /**
+     * Generates a key pair.
+     *
+     * @param bits the size of the modulus in bits
+     * @param policy how the exponents are chosen
+     * @param random the source of randomness for the primes
+     */
+    public RSA(int bits, ExponentPolicy policy, Random random) {
+        checkBits(bits);
+        BigInteger p;
+        BigInteger q;
+        do {
+            p = generatePrime(bits - bits / 2, policy, random);
+            q = generatePrime(bits / 2, policy, random);
+        } while (p.equals(q));
+        initFromPrimes(p, q, policy);
+    }
+
+    private RSA(BigInteger p, BigInteger q, ExponentPolicy policy) {
+        initFromPrimes(p, q, policy);
+    }
+
+    /**
+     * Generates a key pair, searching for the two primes on several threads at once.
+     * Each thread starts on one of the primes and helps with the other one once it is
+     * found, so that with more than two threads both searches are raced.
+     *
+     * @param bits the size of the modulus in bits
+     * @param policy how the exponents are chosen
+     * @param threads the number of threads searching for primes
+     * @return the key pair
+     */
+    public static RSA generate(int bits, ExponentPolicy policy, int threads) {
+        checkBits(bits);
+        if (threads <= 1) {
+            return new RSA(bits, policy, new SecureRandom());
+        }
+        int[] sizes = {bits - bits / 2, bits / 2};
+        AtomicReferenceArray<BigInteger> primes = new AtomicReferenceArray<>(2);
+        CountDownLatch found = new CountDownLatch(2);
+        ExecutorService searchers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "rsa-prime-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < threads; i++) {
+            int first = i % 2;
+            searchers.execute(() -> {
+                Random random = new SecureRandom();
+                while (found.getCount() > 0) {
+                    int slot = primes.get(first) == null ? first : 1 - first;
+                    BigInteger prime = generatePrime(sizes[slot], policy, random);
+                    if (!prime.equals(primes.get(1 - slot)) && primes.compareAndSet(slot, null, prime)) {
+                        found.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            found.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while generating RSA keys", e);
+        } finally {
+            searchers.shutdownNow();
+        }
+        return new RSA(primes.get(0), primes.get(1), policy);
+    }
+
+    private static void checkBits(int bits) {
+        if (bits < 128) {
+            throw new IllegalArgumentException("RSA modulus too small: " + bits + " bits");
+        }
+    }
+
+    private void initFromPrimes(BigInteger p, BigInteger q, ExponentPolicy policy) {
+        BigInteger lambda = lcm(p.subtract(BigInteger.ONE), q.subtract(BigInteger.ONE));
+        BigInteger d;
+        BigInteger e;
+        if (policy == ExponentPolicy.F4) {
+            e = F4;
+            d = e.modInverse(lambda);
+        } else {
+            d = comprime(lambda);
+            e = d.modInverse(lambda);
+        }
+        init(e, d, p, q);
     }
 
+    /**
+     * Constructs a public key, which can only encrypt.
+     *
+     * @param e the public exponent
+     * @param n the modulus
+     */
     public RSA(BigInteger e, BigInteger n) {
         this.e = e;
         this.n = n;
     }
 
+    /**
+     * Constructs a key pair from existing exponents and primes.
+     *
+     * @param e the public exponent
+     * @param d the private exponent
+     * @param p the first prime
+     * @param q the second prime
+     */
+    public RSA(BigInteger e, BigInteger d, BigInteger p, BigInteger q) {
+        init(e, d, p, q);
+    }
+
+    private void init(BigInteger e, BigInteger d, BigInteger p, BigInteger q) {
+        this.e = e;
+        this.d = d;
+        this.p = p;
+        this.q = q;
+        this.n = p.multiply(q);
+        this.dP = d.mod(p.subtract(BigInteger.ONE));
+        this.dQ = d.mod(q.subtract(BigInteger.ONE));
+        this.qInv = q.modInverse(p);
+    }
+
+    /**
+     * Generates a prime of the given size; with the {@link ExponentPolicy#F4} policy,
+     * {@code p - 1} must also be coprime to 65537 so that the exponent is invertible.
+     */
+    private static BigInteger generatePrime(int bits, ExponentPolicy policy, Random random) {
+        while (true) {
+            BigInteger prime = BigInteger.probablePrime(bits, random);
+            if (policy != ExponentPolicy.F4 || prime.subtract(BigInteger.ONE).gcd(F4).equals(BigInteger.ONE)) {
+                return prime;
+            }
+        }
+    }
+
     private static BigInteger comprime(BigInteger input) {
         BigInteger candidate = BigInteger.valueOf(2);
         while (true) {
@@ -35,11 +233,26 @@ public class RSA {
         }
     }
 
-    private BigInteger lcm(BigInteger input1, BigInteger input2) {
+    private static BigInteger lcm(BigInteger input1, BigInteger input2) {
         return input1.multiply(input2).divide(input1.gcd(input2));
     }
 
+    /**
+     * Decrypts with the Chinese Remainder Theorem: two exponentiations with half size
+     * exponents modulo half size primes, recombined with Garner's formula.
+     */
     private BigInteger decrypt(BigInteger encryptedMessage) {
+        BigInteger m1 = encryptedMessage.modPow(dP, p);
+        BigInteger m2 = encryptedMessage.modPow(dQ, q);
+        BigInteger h = qInv.multiply(m1.subtract(m2)).mod(p);
+        return m2.add(h.multiply(q));
+    }
+
+    /**
+     * Decrypts with a single exponentiation modulo {@code n}, as the original
+     * implementation did. Only kept to check and measure {@link #decrypt(BigInteger)}.
+     */
+    BigInteger decryptWithoutCrt(BigInteger encryptedMessage) {
         return encryptedMessage.modPow(d, n);
     }
 
@@ -56,6 +269,14 @@ public class RSA {
         return encrypt(new BigInteger(data)).toString();
     }
 
+    public byte[] decrypt(byte[] encryptedMessage) {
+        return decrypt(new BigInteger(encryptedMessage)).toByteArray();
+    }
+
+    public byte[] encrypt(byte[] message) {
+        return encrypt(new BigInteger(message)).toByteArray();
+    }
+
     public BigInteger getN() {
         return n;
     }
@@ -63,4 +284,25 @@ public class RSA {
     public BigInteger getE() {
         return e;
     }
+
+    BigInteger getD() {
+        return d;
+    }
+
+    BigInteger getP() {
+        return p;
+    }
+
+    BigInteger getQ() {
+        return q;
+    }
+
+    /**
+     * Tells whether this key pair can decrypt, as opposed to a public key.
+     *
+     * @return true if the private exponent and the primes are known
+     */
+    public boolean isPrivate() {
+        return d != null;
+    }
 }
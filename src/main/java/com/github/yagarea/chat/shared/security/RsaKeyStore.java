@@ -0,0 +1,130 @@
+package com.github.yagarea.chat.shared.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Properties;
+
+/**
+ * Keeps an RSA key pair in a file, so that it is generated once instead of on every start.
+ * <p>
+ * The file is a properties file holding {@code e}, {@code d}, {@code p} and {@code q} in
+ * decimal, everything else is derived again when it is loaded. It is written to a
+ * temporary file first and moved into place, so a crash never leaves half a key behind,
+ * and it is readable by its owner only where the file system supports POSIX permissions.
+ */
+public final class RsaKeyStore {
+    private static final String FORMAT = "chat-rsa-1";
+
+    private RsaKeyStore() {
+    }
+
+    /**
+     * Loads the key pair stored in a file, or generates one and stores it if the file
+     * does not exist yet.
+     *
+     * @param path the file of the key pair
+     * @param bits the size of the modulus, if a key pair has to be generated
+     * @param policy how the exponents are chosen, if a key pair has to be generated
+     * @param threads the number of threads searching for primes, if a key pair has to be generated
+     * @return the key pair
+     * @throws IOException if the file cannot be read or written, or holds no valid key pair
+     */
+    public static RSA loadOrGenerate(Path path, int bits, RSA.ExponentPolicy policy, int threads) throws IOException {
+        if (Files.exists(path)) {
+            return load(path);
+        }
+        RSA keys = RSA.generate(bits, policy, threads);
+        try {
+            save(path, keys);
+        } catch (FileAlreadyExistsException e) {
+            // another process generated a key pair at the same time, use the stored one
+            return load(path);
+        }
+        return keys;
+    }
+
+    /**
+     * Loads a key pair.
+     *
+     * @param path the file of the key pair
+     * @return the key pair
+     * @throws IOException if the file cannot be read or holds no valid key pair
+     */
+    public static RSA load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(path)) {
+            properties.load(input);
+        }
+        if (!FORMAT.equals(properties.getProperty("format"))) {
+            throw new IOException(path + " is not an RSA key store");
+        }
+        RSA keys;
+        try {
+            keys = new RSA(number(properties, "e"), number(properties, "d"), number(properties, "p"), number(properties, "q"));
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new IOException(path + " holds an invalid RSA key pair", e);
+        }
+        BigInteger probe = BigInteger.valueOf(0x5eed);
+        if (!new BigInteger(keys.decrypt(probe.modPow(keys.getE(), keys.getN()).toByteArray())).equals(probe)) {
+            throw new IOException(path + " holds an invalid RSA key pair");
+        }
+        return keys;
+    }
+
+    /**
+     * Stores a key pair in a new file.
+     *
+     * @param path the file of the key pair
+     * @param keys the key pair
+     * @throws FileAlreadyExistsException if the file already exists
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(Path path, RSA keys) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("format", FORMAT);
+        properties.setProperty("e", keys.getE().toString());
+        properties.setProperty("d", keys.getD().toString());
+        properties.setProperty("p", keys.getP().toString());
+        properties.setProperty("q", keys.getQ().toString());
+
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system, keep the default permissions
+            }
+            try (OutputStream output = Files.newOutputStream(temporary)) {
+                properties.store(output, "RSA key pair of the chat, keep it private");
+            }
+            if (Files.exists(path)) {
+                throw new FileAlreadyExistsException(path.toString());
+            }
+            try {
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, path);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static BigInteger number(Properties properties, String name) throws IOException {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            throw new IOException("Missing " + name + " in RSA key store");
+        }
+        return new BigInteger(value.trim());
+    }
+}
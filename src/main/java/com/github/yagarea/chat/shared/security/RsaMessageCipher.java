@@ -0,0 +1,49 @@
+package com.github.yagarea.chat.shared.security;
+
+/**
+ * The original, pure RSA protocol: every message is encrypted with the public key of
+ * the peer and decrypted with our own private key.
+ */
+public class RsaMessageCipher implements MessageCipher {
+    private final RSA encryptor;
+    private final RSA decryptor;
+
+    /**
+     * Constructs a cipher from both halves of the RSA exchange.
+     *
+     * @param encryptor the public key of the peer
+     * @param decryptor our own key pair
+     */
+    public RsaMessageCipher(RSA encryptor, RSA decryptor) {
+        this.encryptor = encryptor;
+        this.decryptor = decryptor;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext) {
+        return encryptor.encrypt(plaintext);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext) {
+        try {
+            return decryptor.decrypt(ciphertext);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed RSA message", e);
+        }
+    }
+
+    @Override
+    public String encryptString(String message) {
+        return encryptor.encryptString(message);
+    }
+
+    @Override
+    public String decryptString(String encryptedMessage) {
+        try {
+            return decryptor.decryptString(encryptedMessage);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed RSA message", e);
+        }
+    }
+}
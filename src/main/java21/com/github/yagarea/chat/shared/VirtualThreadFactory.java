@@ -0,0 +1,25 @@
+package com.github.yagarea.chat.shared;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A {@link ThreadFactory} of virtual threads. Only compiled by the
+ * {@code virtual-threads} Maven profile, see {@link ThreadFactories}.
+ */
+public class VirtualThreadFactory implements ThreadFactory {
+    private final ThreadFactory delegate;
+
+    /**
+     * Constructs a factory of virtual threads named with the given prefix and a counter.
+     *
+     * @param namePrefix the prefix of the names of the created threads
+     */
+    public VirtualThreadFactory(String namePrefix) {
+        this.delegate = Thread.ofVirtual().name(namePrefix, 0).factory();
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        return delegate.newThread(runnable);
+    }
+}
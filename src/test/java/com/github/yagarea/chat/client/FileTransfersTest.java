@@ -0,0 +1,58 @@
+package com.github.yagarea.chat.client;
+
+import com.github.yagarea.chat.shared.security.AesGcmCipher;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+
+public class FileTransfersTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> sent = new ArrayList<>();
+
+    @Test
+    public void testMalformedControlLinesAreIgnored() throws Exception {
+        FileTransfers transfers = transfers(folder.getRoot());
+        transfers.onControl("ACK alice 7 x");
+        transfers.onControl("END alice 7 x");
+        transfers.onControl("ACK alice x 1");
+        transfers.onControl("OFFER alice 7 x");
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals("CANCEL alice 7 refused", sent.get(0));
+    }
+
+    @Test
+    public void testMalformedEndCancelsTheTransfer() throws Exception {
+        File downloads = new File(folder.getRoot(), "downloads");
+        FileTransfers transfers = transfers(downloads);
+        String key = Base64.getEncoder().encodeToString(AesGcmCipher.generate().getKey());
+        transfers.onControl("OFFER alice 7 10 " + key + " notes.txt");
+        Assert.assertTrue(sent.isEmpty());
+        Assert.assertFalse(downloads.exists());
+
+        transfers.accept(1);
+        Assert.assertEquals("ACK alice 7 0", sent.get(0));
+        Assert.assertTrue(new File(downloads, "notes.txt").exists());
+
+        transfers.onControl("END alice 7 ten");
+        Assert.assertEquals("CANCEL alice 7 malformed", sent.get(1));
+        Assert.assertFalse(new File(downloads, "notes.txt").exists());
+    }
+
+    private FileTransfers transfers(File downloads) {
+        return new FileTransfers(null, downloads.toPath(), 1 << 20) {
+            @Override
+            void sendTransfer(String control) {
+                sent.add(control);
+            }
+        };
+    }
+}
@@ -4,6 +4,12 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 
 public class AuthenticatorTest {
@@ -54,8 +60,54 @@ public class AuthenticatorTest {
         Authenticator authenticator = new Authenticator(tempAuthFile.getAbsolutePath());
         authenticator.registerUser("registered", "oldPassword");
         Assert.assertTrue(authenticator.authenticate("registered", "oldPassword"));
-        authenticator.changePassword("registered", "newPassword");
+        Assert.assertTrue(authenticator.changePassword("registered", "newPassword"));
         Assert.assertFalse(authenticator.authenticate("registered", "password"));
         Assert.assertTrue(authenticator.authenticate("registered", "newPassword"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testChangePasswordReportsFailedWrite() throws Exception {
+        File tempAuthFile = File.createTempFile("AuthTest", "txt");
+        tempAuthFile.deleteOnExit();
+
+        Authenticator authenticator = new Authenticator(tempAuthFile.getAbsolutePath());
+        authenticator.registerUser("registered", "oldPassword");
+        authenticator.close();
+        Assert.assertFalse(authenticator.changePassword("registered", "newPassword"));
+        Assert.assertTrue(authenticator.authenticate("registered", "oldPassword"));
+    }
+
+    @Test
+    public void testConcurrentRegistrations() throws Exception {
+        File tempAuthFile = File.createTempFile("AuthTest", "txt");
+        tempAuthFile.deleteOnExit();
+
+        Authenticator authenticator = new Authenticator(tempAuthFile.getAbsolutePath());
+        ExecutorService threads = Executors.newFixedThreadPool(16);
+        List<Future<Boolean>> sharedName = new ArrayList<>();
+        for (int t = 0; t < 16; t++) {
+            int thread = t;
+            sharedName.add(threads.submit(() -> authenticator.registerUser("shared", "password" + thread)));
+            for (int i = 0; i < 50; i++) {
+                int user = i;
+                threads.submit(() -> authenticator.registerUser("user" + thread + "_" + user, "password"));
+            }
+        }
+        int registered = 0;
+        for (Future<Boolean> attempt : sharedName) {
+            registered += attempt.get() ? 1 : 0;
+        }
+        threads.shutdown();
+        threads.awaitTermination(1, TimeUnit.MINUTES);
+        authenticator.close();
+        Assert.assertEquals(1, registered);
+
+        Authenticator reloaded = new Authenticator(tempAuthFile.getAbsolutePath());
+        for (int t = 0; t < 16; t++) {
+            for (int i = 0; i < 50; i++) {
+                Assert.assertTrue(reloaded.authenticate("user" + t + "_" + i, "password"));
+            }
+        }
+        Assert.assertTrue(reloaded.userIsRegistered("shared"));
+    }
+}
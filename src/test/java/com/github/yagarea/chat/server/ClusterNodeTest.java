@@ -0,0 +1,139 @@
+package com.github.yagarea.chat.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+
+public class ClusterNodeTest {
+    private final List<ClusterNode> nodes = new ArrayList<>();
+
+    @After
+    public void closeNodes() {
+        for (ClusterNode node : nodes) {
+            node.close();
+        }
+    }
+
+    @Test
+    public void testPresenceIsShared() throws Exception {
+        ClusterNode b = node("b", "secret", "");
+        ClusterNode a = node("a", "secret", "localhost:" + b.getPort());
+        await(() -> a.isLinked("b") && b.isLinked("a"));
+
+        a.userJoined("alice", "lobby");
+        await(() -> b.isOnline("alice"));
+        Assert.assertEquals(Collections.singleton("alice"), b.getRemoteUsers());
+        Assert.assertFalse(a.isOnline("alice"));
+
+        a.userLeft("alice");
+        await(() -> !b.isOnline("alice"));
+    }
+
+    @Test
+    public void testRefusesNodeWithWrongSecret() throws Exception {
+        ClusterNode b = node("b", "secret", "");
+        ClusterNode c = node("c", "guess", "localhost:" + b.getPort());
+        Thread.sleep(500);
+        Assert.assertFalse(b.isLinked("c"));
+        Assert.assertFalse(c.isLinked("b"));
+    }
+
+    @Test
+    public void testListenerProvesNothingToUnknownNode() throws Exception {
+        ClusterNode b = node("b", "secret", "");
+        try (Socket socket = new Socket("localhost", b.getPort())) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            String hello = reader.readLine();
+            Assert.assertTrue(hello.startsWith("HELLO b "));
+            Assert.assertFalse(hello.contains(Base64.getEncoder().encodeToString("secret".getBytes(StandardCharsets.UTF_8))));
+            writer.println("HELLO x " + hello.substring("HELLO b ".length()));
+            writer.println("PROOF guess");
+            Assert.assertNull(reader.readLine());
+        }
+        Assert.assertFalse(b.isLinked("x"));
+    }
+
+    @Test
+    public void testDropsOverlongHandshakeLine() throws Exception {
+        ClusterNode b = node("b", "secret", "");
+        try (Socket socket = new Socket("localhost", b.getPort())) {
+            // well below the handshake timeout of the node, which would drop the link anyway
+            socket.setSoTimeout(3000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Assert.assertTrue(reader.readLine().startsWith("HELLO b "));
+            char[] line = new char[4096];
+            Arrays.fill(line, 'x');
+            try {
+                socket.getOutputStream().write(new String(line).getBytes(StandardCharsets.UTF_8));
+                socket.getOutputStream().flush();
+            } catch (IOException e) {
+                // the node may already have dropped the link
+            }
+            try {
+                Assert.assertNull(reader.readLine());
+            } catch (SocketTimeoutException e) {
+                Assert.fail("the node kept reading the line");
+            } catch (IOException e) {
+                // reset by the node, dropped as well
+            }
+        }
+        Assert.assertFalse(b.isLinked("x"));
+    }
+
+    @Test
+    public void testNamesAreUniqueAcrossNodes() throws Exception {
+        Authenticator authenticator = authenticator();
+        authenticator.registerUser("alice", "password");
+        ClusterNode b = node("b", "secret", "", authenticator);
+        ClusterNode a = node("a", "secret", "localhost:" + b.getPort());
+        Assert.assertFalse(a.isRegisteredElsewhere("alice"));
+        await(() -> a.isLinked("b") && b.isLinked("a"));
+
+        Assert.assertTrue(a.isRegisteredElsewhere("alice"));
+        Assert.assertFalse(a.isRegisteredElsewhere("bob"));
+        Assert.assertFalse(b.isRegisteredElsewhere("alice"));
+    }
+
+    private ClusterNode node(String name, String secret, String peer) throws Exception {
+        return node(name, secret, peer, authenticator());
+    }
+
+    private ClusterNode node(String name, String secret, String peer, Authenticator authenticator) throws Exception {
+        ClusterNode node = new ClusterNode(name, 0, peer.isEmpty() ? Collections.emptyList() : Collections.singletonList(peer),
+                secret, 100, new ConcurrentHashMap<>(), authenticator, new Rooms(new BroadcastFanOut(1, 128), 1, "lobby"), new Presence());
+        nodes.add(node);
+        node.start();
+        return node;
+    }
+
+    private static Authenticator authenticator() throws Exception {
+        File file = File.createTempFile("ClusterNodeTest", "txt");
+        file.deleteOnExit();
+        return new Authenticator(file.getAbsolutePath());
+    }
+
+    private static void await(BooleanSupplier condition) throws Exception {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(condition.getAsBoolean());
+    }
+}
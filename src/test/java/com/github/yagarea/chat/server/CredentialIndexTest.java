@@ -0,0 +1,73 @@
+package com.github.yagarea.chat.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+public class CredentialIndexTest {
+
+    @Test
+    public void testLookupLatestRecords() throws Exception {
+        File tempAuthFile = File.createTempFile("CredentialIndexTest", "txt");
+        tempAuthFile.deleteOnExit();
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            log.append("user").append(i).append(":1:old").append(i).append('\n');
+        }
+        log.append("user7:2:new7\n");
+        Files.write(tempAuthFile.toPath(), log.toString().getBytes(StandardCharsets.UTF_8));
+        Path indexFile = Paths.get(tempAuthFile + ".idx");
+        indexFile.toFile().deleteOnExit();
+
+        CredentialIndex index = CredentialIndex.openOrBuild(tempAuthFile.toPath(), indexFile);
+        Assert.assertEquals(1000, index.getUsers());
+        Assert.assertEquals("old999", index.get("user999").getHash());
+        Assert.assertEquals("new7", index.get("user7").getHash());
+        Assert.assertNull(index.get("user1000"));
+        // the log was compacted along with the build
+        Assert.assertEquals(1000, Files.readAllLines(tempAuthFile.toPath(), StandardCharsets.UTF_8).size());
+        Assert.assertEquals(Files.size(tempAuthFile.toPath()), index.getCoveredSize());
+    }
+
+    @Test
+    public void testAuthenticatorReadsRecordsAfterIndex() throws Exception {
+        File tempAuthFile = File.createTempFile("CredentialIndexTest", "txt");
+        tempAuthFile.deleteOnExit();
+        new File(tempAuthFile + ".idx").deleteOnExit();
+
+        Authenticator authenticator = new Authenticator(tempAuthFile.getAbsolutePath(), true);
+        authenticator.registerUser("registered", "password");
+        authenticator.close();
+        authenticator = new Authenticator(tempAuthFile.getAbsolutePath(), true);
+        authenticator.registerUser("later", "password");
+        authenticator.changePassword("registered", "newPassword");
+        authenticator.close();
+
+        Authenticator reloaded = new Authenticator(tempAuthFile.getAbsolutePath(), true);
+        Assert.assertTrue(reloaded.authenticate("registered", "newPassword"));
+        Assert.assertTrue(reloaded.authenticate("later", "password"));
+        Assert.assertFalse(reloaded.userIsRegistered("unregistered"));
+        Assert.assertFalse(reloaded.registerUser("later", "other"));
+    }
+
+    @Test
+    public void testRebuildsWhenLogIsReplaced() throws Exception {
+        File tempAuthFile = File.createTempFile("CredentialIndexTest", "txt");
+        tempAuthFile.deleteOnExit();
+        Path indexFile = Paths.get(tempAuthFile + ".idx");
+        indexFile.toFile().deleteOnExit();
+        Files.write(tempAuthFile.toPath(), "alice:1:first\n".getBytes(StandardCharsets.UTF_8));
+        CredentialIndex.openOrBuild(tempAuthFile.toPath(), indexFile);
+
+        Files.write(tempAuthFile.toPath(), "bob:1:second\nalice:2:third\n".getBytes(StandardCharsets.UTF_8));
+        CredentialIndex index = CredentialIndex.openOrBuild(tempAuthFile.toPath(), indexFile);
+        Assert.assertEquals("third", index.get("alice").getHash());
+        Assert.assertEquals("second", index.get("bob").getHash());
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.yagarea.chat.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+
+public class CredentialLogTest {
+
+    @Test
+    public void testLatestRecordWins() throws Exception {
+        File tempAuthFile = File.createTempFile("CredentialLogTest", "txt");
+        tempAuthFile.deleteOnExit();
+
+        try (CredentialLog log = new CredentialLog(tempAuthFile.toPath(), 1000, true)) {
+            log.append("alice", new PasswordHolder("1", "old"), false);
+            log.append("bob", new PasswordHolder("2", "bob"), false);
+            log.append("alice", new PasswordHolder("3", "new"), true);
+        }
+        CredentialLog log = new CredentialLog(tempAuthFile.toPath(), 1000, true);
+        Map<String, PasswordHolder> users = log.read();
+        Assert.assertEquals(2, users.size());
+        Assert.assertEquals("new", users.get("alice").getHash());
+        Assert.assertEquals(3, log.getRecords());
+        Assert.assertEquals(1, log.getObsolete());
+    }
+
+    @Test
+    public void testCompactKeepsLatestRecords() throws Exception {
+        File tempAuthFile = File.createTempFile("CredentialLogTest", "txt");
+        tempAuthFile.deleteOnExit();
+
+        try (CredentialLog log = new CredentialLog(tempAuthFile.toPath(), Integer.MAX_VALUE, true)) {
+            for (int i = 0; i < 100; i++) {
+                log.append("alice", new PasswordHolder(Integer.toString(i), "hash" + i), i > 0);
+            }
+            log.append("bob", new PasswordHolder("1", "bob"), false);
+            log.compact();
+            log.append("alice", new PasswordHolder("100", "hash100"), true);
+            Assert.assertEquals(3, log.getRecords());
+        }
+        Assert.assertEquals(3, Files.readAllLines(tempAuthFile.toPath(), StandardCharsets.UTF_8).size());
+        Map<String, PasswordHolder> users = new CredentialLog(tempAuthFile.toPath(), 1000, true).read();
+        Assert.assertEquals("hash100", users.get("alice").getHash());
+        Assert.assertEquals("bob", users.get("bob").getHash());
+    }
+
+    @Test
+    public void testSkipsTornRecord() throws Exception {
+        File tempAuthFile = File.createTempFile("CredentialLogTest", "txt");
+        tempAuthFile.deleteOnExit();
+        Files.write(tempAuthFile.toPath(), "alice:1:hash\nbob:2".getBytes(StandardCharsets.UTF_8));
+
+        Map<String, PasswordHolder> users = new CredentialLog(tempAuthFile.toPath(), 1000, true).read();
+        Assert.assertEquals(1, users.size());
+        Assert.assertTrue(users.containsKey("alice"));
+    }
+}
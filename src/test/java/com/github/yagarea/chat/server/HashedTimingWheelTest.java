@@ -0,0 +1,82 @@
+package com.github.yagarea.chat.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class HashedTimingWheelTest {
+    private final HashedTimingWheel wheel = new HashedTimingWheel(10, 8, "test-timers");
+
+    @After
+    public void stopWheel() {
+        wheel.stop();
+    }
+
+    @Test
+    public void testTimeoutsFireInOrderAndNeverEarly() throws InterruptedException {
+        List<Integer> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        long start = System.nanoTime();
+        long[] elapsed = new long[1];
+        // 250 ms is more than three turns of a wheel of 8 ticks of 10 ms
+        wheel.schedule(() -> {
+            elapsed[0] = System.nanoTime() - start;
+            fired.add(250);
+            done.countDown();
+        }, 250, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> {
+            fired.add(20);
+            done.countDown();
+        }, 20, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> {
+            fired.add(100);
+            done.countDown();
+        }, 100, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(20, 100, 250), fired);
+        Assert.assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(250));
+        Assert.assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    public void testCancelledTimeoutsNeverFire() throws InterruptedException {
+        AtomicInteger fired = new AtomicInteger();
+        CountDownLatch last = new CountDownLatch(1);
+        for (int i = 0; i < 10000; i++) {
+            HashedTimingWheel.Timeout timeout = wheel.schedule(fired::incrementAndGet, 1000 + i % 50, TimeUnit.MILLISECONDS);
+            if (i % 2 == 0) {
+                Assert.assertTrue(timeout.cancel());
+                Assert.assertFalse(timeout.cancel());
+            }
+        }
+        wheel.schedule(last::countDown, 1200, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(5001, wheel.pending());
+
+        Assert.assertTrue(last.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(5000, fired.get());
+        Assert.assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    public void testTasksCanRescheduleThemselves() throws InterruptedException {
+        CountDownLatch ticks = new CountDownLatch(5);
+        Runnable[] heartbeat = new Runnable[1];
+        heartbeat[0] = () -> {
+            ticks.countDown();
+            if (ticks.getCount() > 0) {
+                wheel.schedule(heartbeat[0], 15, TimeUnit.MILLISECONDS);
+            }
+        };
+        wheel.schedule(heartbeat[0], 15, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(ticks.await(5, TimeUnit.SECONDS));
+    }
+}
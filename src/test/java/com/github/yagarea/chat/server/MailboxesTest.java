@@ -0,0 +1,38 @@
+package com.github.yagarea.chat.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.List;
+
+
+public class MailboxesTest {
+
+    @Test
+    public void testTakeEmptiesMailbox() throws Exception {
+        Mailboxes mailboxes = new Mailboxes(Files.createTempDirectory("MailboxesTest"), 1 << 16);
+        Assert.assertTrue(mailboxes.store("bob", "first"));
+        Assert.assertTrue(mailboxes.store("bob", "second"));
+        Assert.assertTrue(mailboxes.store("carol", "other"));
+
+        List<MessageHistory.Entry> mail = mailboxes.take("bob");
+        Assert.assertEquals(2, mail.size());
+        Assert.assertEquals("first", mail.get(0).getText());
+        Assert.assertEquals("second", mail.get(1).getText());
+        Assert.assertTrue(mailboxes.take("bob").isEmpty());
+        Assert.assertEquals(1, mailboxes.take("carol").size());
+    }
+
+    @Test
+    public void testRefusesMessagesBeyondLimit() throws Exception {
+        Mailboxes mailboxes = new Mailboxes(Files.createTempDirectory("MailboxesTest"), 100);
+        int stored = 0;
+        while (mailboxes.store("bob", "0123456789")) {
+            stored++;
+        }
+        Assert.assertEquals(4, stored);
+        Assert.assertEquals(4, mailboxes.take("bob").size());
+        Assert.assertTrue(mailboxes.store("bob", "0123456789"));
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.yagarea.chat.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+
+public class MessageHistoryTest {
+
+    @Test
+    public void testLastMessagesOldestFirst() throws Exception {
+        MessageHistory history = new MessageHistory(Files.createTempDirectory("MessageHistoryTest"), 1 << 20, 3600000, 4);
+        for (int i = 0; i < 10; i++) {
+            history.append("message " + i);
+        }
+        List<MessageHistory.Entry> last = awaitMessages(history, 10);
+        Assert.assertEquals("message 9", last.get(9).getText());
+        last = history.last(3);
+        Assert.assertEquals(3, last.size());
+        Assert.assertEquals("message 7", last.get(0).getText());
+        Assert.assertEquals("message 9", last.get(2).getText());
+    }
+
+    @Test
+    public void testRollsAndKeepsNewestSegments() throws Exception {
+        Path directory = Files.createTempDirectory("MessageHistoryTest");
+        MessageHistory history = new MessageHistory(directory, 64, 3600000, 2);
+        for (int i = 0; i < 20; i++) {
+            history.append("message number " + i);
+            awaitLast(history, "message number " + i);
+        }
+        try (Stream<Path> segments = Files.list(directory)) {
+            Assert.assertEquals(2, segments.count());
+        }
+        List<MessageHistory.Entry> last = history.last(100);
+        Assert.assertTrue(last.size() < 20);
+        Assert.assertEquals("message number 19", last.get(last.size() - 1).getText());
+    }
+
+    @Test
+    public void testRecoversFromTornRecord() throws Exception {
+        Path directory = Files.createTempDirectory("MessageHistoryTest");
+        MessageHistory history = new MessageHistory(directory, 1 << 20, 3600000, 4);
+        history.append("before the crash");
+        awaitMessages(history, 1);
+        Path segment;
+        try (Stream<Path> segments = Files.list(directory)) {
+            segment = segments.findFirst().get();
+        }
+        Files.write(segment, new byte[] {0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+
+        history = new MessageHistory(directory, 1 << 20, 3600000, 4);
+        history.append("after the crash");
+        List<MessageHistory.Entry> last = awaitMessages(history, 2);
+        Assert.assertEquals(2, last.size());
+        Assert.assertEquals("before the crash", last.get(0).getText());
+        Assert.assertEquals("after the crash", last.get(1).getText());
+    }
+
+    /**
+     * Waits for the writer to make a message the last one of the history.
+     */
+    private static void awaitLast(MessageHistory history, String text) throws Exception {
+        for (int i = 0; i < 500; i++) {
+            List<MessageHistory.Entry> last = history.last(1);
+            if (!last.isEmpty() && last.get(0).getText().equals(text)) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("The history does not end with " + text);
+    }
+
+    /**
+     * Waits for the writer to make a number of messages readable.
+     */
+    private static List<MessageHistory.Entry> awaitMessages(MessageHistory history, int count) throws Exception {
+        for (int i = 0; i < 500; i++) {
+            List<MessageHistory.Entry> last = history.last(count);
+            if (last.size() == count) {
+                return last;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("The history holds fewer than " + count + " messages");
+    }
+}
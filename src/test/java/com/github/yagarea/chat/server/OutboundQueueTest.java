@@ -0,0 +1,59 @@
+package com.github.yagarea.chat.server;
+
+import com.github.yagarea.chat.shared.Frame;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class OutboundQueueTest {
+
+    @Test
+    public void testDropOldestSkipsTransfers() {
+        OutboundQueue queue = new OutboundQueue();
+        byte[] chunk = Frame.encode(Frame.CHUNK, new byte[100]);
+        byte[] first = Frame.encode(Frame.MESSAGE, new byte[10]);
+        byte[] second = Frame.encode(Frame.MESSAGE, new byte[20]);
+        queue.add(chunk);
+        queue.add(first);
+        queue.add(second);
+
+        Assert.assertTrue(queue.dropOldest());
+        Assert.assertEquals(chunk.length + second.length, queue.pendingBytes());
+        Assert.assertTrue(queue.dropOldest());
+        Assert.assertFalse(queue.dropOldest());
+        Assert.assertSame(chunk, queue.poll());
+        Assert.assertEquals(0, queue.pendingBytes());
+    }
+
+    @Test
+    public void testDropOldestSkipsKeptFrames() {
+        OutboundQueue queue = new OutboundQueue();
+        byte[] mailbox = Frame.encode(Frame.MESSAGE, new byte[100]);
+        byte[] broadcast = Frame.encode(Frame.MESSAGE, new byte[10]);
+        queue.add(mailbox, false);
+        queue.add(broadcast);
+
+        Assert.assertTrue(queue.dropOldest());
+        Assert.assertFalse(queue.dropOldest());
+        Assert.assertEquals(mailbox.length, queue.pendingBytes());
+        Assert.assertSame(mailbox, queue.poll());
+
+        // once written, the same bytes queued again may be dropped
+        queue.add(mailbox);
+        Assert.assertTrue(queue.dropOldest());
+        Assert.assertEquals(0, queue.depth());
+    }
+
+    @Test
+    public void testDropOldestStopsAtClose() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.add(OutboundQueue.CLOSE);
+        queue.add("line\n".getBytes());
+        Assert.assertFalse(queue.dropOldest());
+        Assert.assertEquals(2, queue.depth());
+
+        queue.clear();
+        Assert.assertEquals(0, queue.depth());
+        Assert.assertEquals(0, queue.pendingBytes());
+    }
+}
@@ -0,0 +1,47 @@
+package com.github.yagarea.chat.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+public class PresenceTest {
+
+    @Test
+    public void testSnapshotIsRebuiltOnlyAfterChanges() {
+        Presence presence = new Presence();
+        presence.add("bob");
+        presence.add("alice");
+        PresenceSnapshot snapshot = presence.snapshot();
+        Assert.assertEquals(Arrays.asList("alice", "bob"), snapshot.getUsers());
+        Assert.assertSame(snapshot, presence.snapshot());
+
+        presence.add("alice");
+        Assert.assertSame(snapshot, presence.snapshot());
+        presence.remove("bob");
+        PresenceSnapshot next = presence.snapshot();
+        Assert.assertTrue(next.getVersion() > snapshot.getVersion());
+        Assert.assertEquals(Arrays.asList("alice"), next.getUsers());
+        Assert.assertEquals(Arrays.asList("alice", "bob"), snapshot.getUsers());
+    }
+
+    @Test
+    public void testPagesWithPrefix() {
+        Presence presence = new Presence();
+        for (int i = 0; i < 25; i++) {
+            presence.add(String.format("user%02d", i));
+        }
+        presence.add("admin");
+        PresenceSnapshot snapshot = presence.snapshot();
+
+        List<String> page = snapshot.page("user", 3, 10);
+        Assert.assertEquals("ONLINE USERS STARTING WITH user: 25, PAGE 3/3", page.get(0));
+        Assert.assertEquals(Arrays.asList("\tuser20", "\tuser21", "\tuser22", "\tuser23", "\tuser24"), page.subList(1, page.size()));
+        Assert.assertSame(page, snapshot.page("user", 3, 10));
+
+        Assert.assertEquals(Arrays.asList("ONLINE USERS: 26, PAGE 1/3", "\tadmin"), snapshot.page("", 1, 10).subList(0, 2));
+        Assert.assertEquals(Arrays.asList("ONLINE USERS STARTING WITH x: 0"), snapshot.page("x", 1, 10));
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.yagarea.chat.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+
+public class RoomsTest {
+
+    @Test
+    public void testEmptyRoomsAreRemovedButDefault() {
+        Rooms rooms = new Rooms(new BroadcastFanOut(1, 128), 1, "lobby");
+        ClientConnection alice = new TestConnection();
+        ClientConnection bob = new TestConnection();
+
+        Rooms.Room lobby = rooms.join("lobby", alice);
+        Rooms.Room games = rooms.join("games", bob);
+        Assert.assertSame(games, rooms.join("games", alice));
+        rooms.leave(lobby, alice);
+        Map<String, Integer> sizes = rooms.list();
+        Assert.assertEquals(Integer.valueOf(0), sizes.get("lobby"));
+        Assert.assertEquals(Integer.valueOf(2), sizes.get("games"));
+
+        rooms.leave(games, alice);
+        rooms.leave(games, bob);
+        Assert.assertFalse(rooms.list().containsKey("games"));
+        Assert.assertTrue(rooms.list().containsKey("lobby"));
+        Assert.assertNotSame(games, rooms.join("games", bob));
+    }
+
+    /**
+     * A connection without a transport, only used as a member of rooms.
+     */
+    private static class TestConnection extends ClientConnection {
+        TestConnection() {
+            super(new ServerContext(null, null, null, null, null, null, null, null, null, null, null, null, null));
+        }
+
+        @Override
+        protected void onQueued() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
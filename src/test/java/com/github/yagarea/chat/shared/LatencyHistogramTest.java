@@ -0,0 +1,35 @@
+package com.github.yagarea.chat.shared;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentilesAddUpAllThreads() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 1; i <= 1000; i++) {
+                    histogram.record(i * 1000L);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(8000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMax());
+        // buckets are accurate to about 6%
+        Assert.assertEquals(500000, histogram.getPercentile(50), 500000 * 0.07);
+        Assert.assertEquals(990000, histogram.getPercentile(99), 990000 * 0.07);
+        Assert.assertEquals(1000000, histogram.getPercentile(100));
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.yagarea.chat.shared.security;
+
+import com.github.yagarea.chat.shared.Handshake;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+
+public class AesGcmCipherTest {
+
+    @Test
+    public void testEncryptDecrypt() {
+        AesGcmCipher cipher = AesGcmCipher.generate();
+        String message = "\u001B[35m\u017elu\u0165ou\u010dk\u00fd k\u016f\u0148\u001B[0m " + new String(new char[1000]).replace('\0', 'x');
+        Assert.assertEquals(message, cipher.decryptString(cipher.encryptString(message)));
+    }
+
+    @Test
+    public void testSameMessageEncryptsDifferently() {
+        AesGcmCipher cipher = AesGcmCipher.generate();
+        Assert.assertNotEquals(cipher.encryptString("hello"), cipher.encryptString("hello"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTamperedMessageIsRejected() {
+        AesGcmCipher cipher = AesGcmCipher.generate();
+        byte[] sealed = cipher.encrypt("hello".getBytes());
+        sealed[sealed.length - 1] ^= 1;
+        cipher.decrypt(sealed);
+    }
+
+    @Test
+    public void testWelcomeCarriesSessionKey() {
+        RSA clientKeys = new RSA();
+        AesGcmCipher serverSide = AesGcmCipher.generate();
+        String welcome = Handshake.welcome(serverSide, new RSA(clientKeys.getE(), clientKeys.getN()), Collections.singleton(Handshake.BINARY));
+        AesGcmCipher clientSide = Handshake.readWelcome(welcome, clientKeys);
+        Assert.assertTrue(Arrays.equals(serverSide.getKey(), clientSide.getKey()));
+        Assert.assertEquals("hello", clientSide.decryptString(serverSide.encryptString("hello")));
+        Assert.assertEquals(Collections.singleton(Handshake.BINARY), Handshake.acceptedFeatures(welcome));
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.yagarea.chat.shared.security;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+
+public class CompressingCipherTest {
+
+    @Test
+    public void testLongMessageIsCompressed() {
+        String message = "\u001B[34mSERVER: \u001B[33malice\u001B[0m has joined this chatting room";
+        byte[] plaintext = message.getBytes(StandardCharsets.UTF_8);
+        byte[] packed = CompressingCipher.compress(plaintext, 32);
+        Assert.assertEquals(CompressingCipher.DEFLATED, packed[0]);
+        Assert.assertTrue(packed.length < plaintext.length / 2);
+        Assert.assertArrayEquals(plaintext, CompressingCipher.decompress(packed));
+    }
+
+    @Test
+    public void testShortMessageIsStored() {
+        byte[] plaintext = "hi".getBytes(StandardCharsets.UTF_8);
+        byte[] packed = CompressingCipher.compress(plaintext, 32);
+        Assert.assertEquals(CompressingCipher.STORED, packed[0]);
+        Assert.assertArrayEquals(plaintext, CompressingCipher.decompress(packed));
+    }
+
+    @Test
+    public void testIncompressibleMessageIsStored() {
+        byte[] plaintext = new AesGcmCipher(new byte[16]).encrypt(new byte[200]);
+        byte[] packed = CompressingCipher.compress(plaintext, 32);
+        Assert.assertEquals(CompressingCipher.STORED, packed[0]);
+        Assert.assertEquals(plaintext.length + 1, packed.length);
+    }
+
+    @Test
+    public void testRoundTripThroughSessionCipher() {
+        AesGcmCipher session = AesGcmCipher.generate();
+        MessageCipher sender = new CompressingCipher(session, 96);
+        MessageCipher receiver = new CompressingCipher(session, 1 << 20);
+        char[] text = new char[5000];
+        Arrays.fill(text, 'x');
+        String message = "\u001B[35mPRIVATE bob: \u001B[0m" + new String(text);
+        Assert.assertEquals(message, receiver.decryptString(sender.encryptString(message)));
+        Assert.assertEquals("short", receiver.decryptString(sender.encryptString("short")));
+        Assert.assertTrue(sender.encrypt(message.getBytes(StandardCharsets.UTF_8)).length < 200);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInflatingBeyondAFrameIsRejected() {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setDictionary(CompressingCipher.DICTIONARY);
+        deflater.setInput(new byte[(1 << 20) + 1]);
+        deflater.finish();
+        byte[] bomb = new byte[1 << 16];
+        bomb[0] = CompressingCipher.DEFLATED;
+        int length = 1 + deflater.deflate(bomb, 1, bomb.length - 1);
+        CompressingCipher.decompress(Arrays.copyOf(bomb, length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFormIsRejected() {
+        CompressingCipher.decompress(new byte[] {7, 1, 2});
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.yagarea.chat.shared.security;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+
+public class RSATest {
+
+    @Test
+    public void testEncryptDecrypt() {
+        RSA keys = new RSA(1024, RSA.ExponentPolicy.F4);
+        RSA publicKey = new RSA(keys.getE(), keys.getN());
+        Assert.assertEquals("hello", keys.decryptString(publicKey.encryptString("hello")));
+    }
+
+    @Test
+    public void testF4PublicExponent() {
+        RSA keys = new RSA(1024, RSA.ExponentPolicy.F4);
+        Assert.assertEquals(BigInteger.valueOf(65537), keys.getE());
+        Assert.assertTrue(keys.getN().bitLength() >= 1023);
+    }
+
+    @Test
+    public void testCrtMatchesPlainDecryption() {
+        Random random = new Random(42);
+        for (RSA.ExponentPolicy policy : RSA.ExponentPolicy.values()) {
+            RSA keys = new RSA(512, policy, random);
+            for (int i = 0; i < 20; i++) {
+                BigInteger message = new BigInteger(keys.getN().bitLength() - 1, random);
+                BigInteger encrypted = message.modPow(keys.getE(), keys.getN());
+                Assert.assertEquals(message, keys.decryptWithoutCrt(encrypted));
+                Assert.assertEquals(message, new BigInteger(keys.decrypt(encrypted.toByteArray())));
+            }
+        }
+    }
+
+    @Test
+    public void testLegacyAndF4KeysInteroperate() {
+        RSA legacy = new RSA(1024, RSA.ExponentPolicy.LEGACY);
+        RSA f4 = new RSA(1024, RSA.ExponentPolicy.F4);
+        MessageCipher legacySide = new RsaMessageCipher(new RSA(f4.getE(), f4.getN()), legacy);
+        MessageCipher f4Side = new RsaMessageCipher(new RSA(legacy.getE(), legacy.getN()), f4);
+        Assert.assertEquals("to f4", f4Side.decryptString(legacySide.encryptString("to f4")));
+        Assert.assertEquals("to legacy", legacySide.decryptString(f4Side.encryptString("to legacy")));
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.yagarea.chat.shared.security;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+
+public class RsaKeyStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testGeneratesOnceThenLoads() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("keys").resolve("server-key.properties");
+        RSA generated = RsaKeyStore.loadOrGenerate(path, 1024, RSA.ExponentPolicy.F4, 4);
+        RSA loaded = RsaKeyStore.loadOrGenerate(path, 1024, RSA.ExponentPolicy.F4, 4);
+        Assert.assertEquals(generated.getN(), loaded.getN());
+        Assert.assertEquals(generated.getE(), loaded.getE());
+        Assert.assertEquals("hello", loaded.decryptString(new RSA(generated.getE(), generated.getN()).encryptString("hello")));
+    }
+
+    @Test
+    public void testParallelGenerationMakesValidKeys() {
+        RSA keys = RSA.generate(1023, RSA.ExponentPolicy.F4, 3);
+        Assert.assertTrue(keys.getN().bitLength() >= 1022);
+        Assert.assertEquals("hello", keys.decryptString(new RSA(keys.getE(), keys.getN()).encryptString("hello")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptStoreIsRejected() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("server-key.properties");
+        RsaKeyStore.save(path, new RSA(512, RSA.ExponentPolicy.F4));
+        String stored = new String(Files.readAllBytes(path), StandardCharsets.US_ASCII);
+        Files.write(path, stored.replaceAll("(?m)^d=(\\d)", "d=1$1").getBytes(StandardCharsets.US_ASCII));
+        RsaKeyStore.load(path);
+    }
+}